@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.util.concurrent.TimeUnit;
+
+/**<!=========================================================================>
+   Compares the cost of setting up a chart (before it is drawn) the way
+   GraphServlet used to, with ChartFactory and new fonts and a new renderer
+   for every chart, against building it with a {@link GraphTheme}.
+   <p/>
+   Both build a new dataset for every chart, as GraphServlet does.  Every plot
+   registers itself as a listener of its dataset, so reusing one dataset
+   would make each chart slower than the last.
+<!==========================================================================>*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChartSetupBenchmark
+{
+   @Param({ "1", "7" })
+   public int days;
+
+   @Param({ "5" })
+   public int series;
+
+   private String[] seriesKeys;
+   private String[] dayKeys;
+   private GraphTheme theme;
+
+   @Setup
+   public void createKeys()
+   {
+      seriesKeys = new String[series];
+      for (int s = 0; s < series; s++)
+         seriesKeys[s] = "Equipment " + s;
+      dayKeys = new String[days];
+      for (int d = 0; d < days; d++)
+         dayKeys[d] = "Day " + d;
+      theme = new GraphTheme();
+   }
+
+   private DefaultCategoryDataset createDataset()
+   {
+      DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+      for (int s = 0; s < series; s++)
+         for (int d = 0; d < days; d++)
+            dataset.addValue(100 + s * 10 + d, seriesKeys[s], dayKeys[d]);
+      return dataset;
+   }
+
+   @Benchmark
+   public JFreeChart originalSetup()
+   {
+      DefaultCategoryDataset dataset = createDataset();
+      JFreeChart chart = ChartFactory.createBarChart3D("Integration Over Time", "24 Hour Period", "", dataset, PlotOrientation.VERTICAL, true, true, false);
+      chart.setBackgroundPaint(Color.black);
+      chart.getTitle().setPaint(Color.white);
+      chart.getTitle().setFont(new Font("Verdana", Font.BOLD, 20));
+      chart.setAntiAlias(true);
+      chart.setTextAntiAlias(true);
+      CategoryPlot plot = (CategoryPlot) chart.getPlot();
+      plot.setForegroundAlpha(1);
+      OpaqueBarRenderer3D renderer = new OpaqueBarRenderer3D();
+      renderer.setItemMargin(0.1);
+      plot.setRenderer(renderer);
+
+      renderer.setSeriesPaint(0, new Color(116,225,118));
+      renderer.setSeriesPaint(1, new Color(245,107,107));
+      renderer.setSeriesPaint(2, new Color(250,187,107));
+      renderer.setSeriesPaint(3, new Color(72,72,238));
+      renderer.setSeriesPaint(4, new Color(184,32,157));
+      renderer.setDrawBarOutline(false);
+
+      Font small = new Font("Verdana", Font.PLAIN, 12);
+      Font big = new Font("Verdana", Font.BOLD, 14);
+
+      renderer.setItemLabelPaint(Color.white);
+      plot.getDomainAxis().setTickLabelPaint(Color.white);
+      plot.getDomainAxis().setTickLabelFont(small);
+      plot.getDomainAxis().setLabelPaint(Color.white);
+      plot.getDomainAxis().setLabelFont(big);
+      plot.getDomainAxis().setCategoryMargin(0.2);
+
+      plot.getRangeAxis().setTickLabelPaint(Color.white);
+      plot.getRangeAxis().setTickLabelFont(small);
+      plot.getRangeAxis().setLabelPaint(Color.white);
+      plot.getRangeAxis().setLabelFont(big);
+      plot.setBackgroundPaint(Color.black);
+
+      chart.getLegend().setBackgroundPaint(Color.black);
+      chart.getLegend().setItemPaint(Color.white);
+      chart.getLegend().setItemFont(big);
+
+      return chart;
+   }
+
+   @Benchmark
+   public JFreeChart themedSetup()
+   {
+      return theme.createChart("Integration Over Time", "24 Hour Period", createDataset());
+   }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**<!=========================================================================>
+   Compares the {@link IntegrationEngine} with the original integrator (which
+   went through a sample object for every point and accumulated in a float)
+   on a synthetic day of trend data.  Run with "gradle jmh".
+   <p/>
+   The day has a sample every sampleInterval milliseconds.  With holes, a
+   15 minute hole is left every 3 hours.
+<!==========================================================================>*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntegrationBenchmark
+{
+   private static final long DAY = 24 * 60 * 60 * 1000L;
+   private static final long HOLE_EVERY = 3 * 60 * 60 * 1000L;
+   private static final long HOLE_LENGTH = 15 * 60 * 1000L;
+
+   @Param({ "60000", "1000" })
+   public long sampleInterval;
+
+   @Param({ "false", "true" })
+   public boolean holes;
+
+   private long[] times;
+   private double[] values;
+   private Sample[] samples;
+
+   // holeIndexes[i] is the index of the first sample after hole i
+   private int[] holeIndexes;
+   private long[] holeStarts;
+   private long[] holeEnds;
+
+   private IntegrationEngine engine;
+
+   @Setup
+   public void createDay()
+   {
+      Random random = new Random(42);
+      List<Sample> sampleList = new ArrayList<Sample>();
+      List<long[]> holeList = new ArrayList<long[]>();
+      float value = 50;
+      for (long time = 0; time < DAY; time += sampleInterval)
+      {
+         if (holes && time % HOLE_EVERY == 0 && time > 0)
+         {
+            holeList.add(new long[] { sampleList.size(), time, time + HOLE_LENGTH });
+            time += HOLE_LENGTH;
+         }
+         value = Math.max(0, value + (random.nextFloat() - 0.5f) * 4);
+         sampleList.add(new Sample(time, value));
+      }
+
+      samples = sampleList.toArray(new Sample[sampleList.size()]);
+      times = new long[samples.length];
+      values = new double[samples.length];
+      for (int i = 0; i < samples.length; i++)
+      {
+         times[i] = samples[i].time;
+         values[i] = samples[i].value;
+      }
+
+      holeIndexes = new int[holeList.size()];
+      holeStarts = new long[holeList.size()];
+      holeEnds = new long[holeList.size()];
+      for (int i = 0; i < holeIndexes.length; i++)
+      {
+         long[] hole = holeList.get(i);
+         holeIndexes[i] = (int) hole[0];
+         holeStarts[i] = hole[1];
+         holeEnds[i] = hole[2];
+      }
+
+      engine = new IntegrationEngine(new long[] { 0, DAY });
+   }
+
+   @Benchmark
+   public float originalIntegrator()
+   {
+      OriginalIntegrator integrator = new OriginalIntegrator();
+      int hole = 0;
+      for (int i = 0; i < samples.length; i++)
+      {
+         if (hole < holeIndexes.length && holeIndexes[hole] == i)
+         {
+            integrator.processHole(holeStarts[hole], holeEnds[hole]);
+            ++hole;
+         }
+         integrator.processData(samples[i]);
+      }
+      return integrator.getValue();
+   }
+
+   @Benchmark
+   public double engineBySample()
+   {
+      engine.reset();
+      int hole = 0;
+      for (int i = 0; i < times.length; i++)
+      {
+         if (hole < holeIndexes.length && holeIndexes[hole] == i)
+         {
+            engine.addHole(holeStarts[hole], holeEnds[hole]);
+            ++hole;
+         }
+         engine.addSample(times[i], values[i]);
+      }
+      return engine.getTotal(0);
+   }
+
+   @Benchmark
+   public double engineByArray()
+   {
+      engine.reset();
+      int start = 0;
+      for (int hole = 0; hole < holeIndexes.length; hole++)
+      {
+         engine.addSamples(times, values, start, holeIndexes[hole] - start);
+         engine.addHole(holeStarts[hole], holeEnds[hole]);
+         start = holeIndexes[hole];
+      }
+      engine.addSamples(times, values, start, times.length - start);
+      return engine.getTotal(0);
+   }
+
+   private static class Sample
+   {
+      private final long time;
+      private final float value;
+
+      private Sample(long time, float value)
+      {
+         this.time = time;
+         this.value = value;
+      }
+   }
+
+   /**<!=========================================================================>
+      The integrator as it was before the IntegrationEngine, for comparison.
+   <!==========================================================================>*/
+   private static class OriginalIntegrator
+   {
+      private float total = 0;
+      private Sample lastSample = null;
+      private long lastTime = -1;
+
+      public void processData(Sample sample)
+      {
+         if (lastSample != null)
+         {
+            total += integrateStep(lastSample.time, lastSample.value, sample.time, sample.value);
+         }
+         else if (lastTime != -1)
+         {
+            total += integrateStep(lastTime, sample.value, sample.time, sample.value);
+            lastTime = -1;
+         }
+         lastSample = sample;
+      }
+
+      public void processHole(long start, long end)
+      {
+         total += integrateStep(lastSample.time, lastSample.value, start, lastSample.value);
+         lastTime = end;
+         lastSample = null;
+      }
+
+      public float getValue()
+      {
+         return total;
+      }
+
+      private double integrateStep(long startTime, float startValue, long endTime, float endValue)
+      {
+         double min = Math.min(startValue, endValue);
+         double max = Math.max(startValue, endValue);
+         double hours = ((double)(endTime - startTime)) / (1000.0 * 60.0 *60.0);
+         return (min + (max - min)/2) * hours;
+      }
+   }
+}
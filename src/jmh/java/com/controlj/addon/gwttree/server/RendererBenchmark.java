@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import org.jfree.chart.JFreeChart;
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**<!=========================================================================>
+   Measures drawing a themed chart (with the {@link OpaqueBarRenderer3D})
+   into an off-screen image, for increasing numbers of series (equipment).
+   Encoding the image is not included.  The legend is removed, since with
+   many series it takes up the whole image and no bars would be drawn.
+<!==========================================================================>*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RendererBenchmark
+{
+   private static final int WIDTH = 600;
+   private static final int HEIGHT = 400;
+
+   @Param({ "5", "50", "200" })
+   public int series;
+
+   @Param({ "1", "7" })
+   public int days;
+
+   private JFreeChart chart;
+   private BufferedImage image;
+   private Graphics2D graphics;
+   private final Rectangle2D area = new Rectangle2D.Double(0, 0, WIDTH, HEIGHT);
+
+   @Setup
+   public void createChart()
+   {
+      DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+      for (int s = 0; s < series; s++)
+         for (int d = 0; d < days; d++)
+            dataset.addValue(100 + (s * 37 + d * 11) % 200, "Equipment " + s, "Day " + d);
+      chart = new GraphTheme().createChart("Integration Over Time", "24 Hour Period", dataset);
+      chart.removeLegend();
+
+      image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+      graphics = image.createGraphics();
+   }
+
+   @TearDown
+   public void dispose()
+   {
+      graphics.dispose();
+   }
+
+   @Benchmark
+   public BufferedImage drawChart()
+   {
+      chart.draw(graphics, area);
+      return image;
+   }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.client;
+
+import com.google.gwt.i18n.client.NumberFormat;
+import com.google.gwt.json.client.JSONArray;
+import com.google.gwt.json.client.JSONNumber;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONValue;
+import com.google.gwt.user.client.DOM;
+import com.google.gwt.user.client.ui.*;
+
+/**<!=========================================================================>
+   A simple bar chart drawn in the browser from the JSON served by the graph
+   data servlet (see GraphServlet).  There is a group of bars for each
+   category (day) with a bar for each series (equipment).  The bars are just
+   positioned and colored elements, so no plugin or canvas is needed.  The
+   server sends the color of each series, so the colors match the charts it
+   renders.
+<!==========================================================================>*/
+public class BarChart extends Composite
+{
+   private static final String[] COLORS = { "#74e176", "#f56b6b", "#fabb6b", "#4848ee", "#b8209d" };   // if the data has none
+   private static final String TITLE = "Integration Over Time";
+   private static final int TITLE_HEIGHT = 36;
+   private static final int AXIS_WIDTH = 70;
+   private static final int LABEL_HEIGHT = 20;
+   private static final int LEGEND_HEIGHT = 24;
+   private static final int MARGIN = 15;
+   private static final int TICKS = 5;
+   private static final NumberFormat VALUE_FORMAT = NumberFormat.getFormat("#,##0.###");
+
+   private final AbsolutePanel panel = new AbsolutePanel();
+   private final int width;
+   private final int height;
+
+   public BarChart(int width, int height)
+   {
+      this.width = width;
+      this.height = height;
+      panel.setPixelSize(width, height);
+      initWidget(panel);
+      setStyleName("barChart");
+   }
+
+   /**<!====== showMessage ===================================================>
+      Replaces the chart with a message (while loading or after an error).
+   <!=======================================================================>*/
+   public void showMessage(String message)
+   {
+      panel.clear();
+      Label label = new Label(message);
+      label.setStyleName("barChart-message");
+      panel.add(label, MARGIN, MARGIN);
+   }
+
+   /**<!====== setData =======================================================>
+      Draws the chart for the given data.
+   <!=======================================================================>*/
+   public void setData(JSONObject data)
+   {
+      panel.clear();
+      JSONArray categories = data.get("categories").isArray();
+      JSONArray series = data.get("series").isArray();
+
+      int plotLeft = AXIS_WIDTH;
+      int plotTop = TITLE_HEIGHT;
+      int plotWidth = width - AXIS_WIDTH - MARGIN;
+      int plotHeight = height - TITLE_HEIGHT - 2 * LABEL_HEIGHT - LEGEND_HEIGHT - MARGIN;
+
+      addLabel(TITLE, "barChart-title", 0, 5, width);
+
+      // value axis
+      double tick = getTickSize(getMaxValue(series));
+      for (int i = 0; i <= TICKS; i++)
+      {
+         int y = plotTop + plotHeight - (plotHeight * i) / TICKS;
+         addBox("barChart-gridLine", null, plotLeft, y, plotWidth, 1, null);
+         addLabel(VALUE_FORMAT.format(tick * i), "barChart-tickLabel", 0, y - LABEL_HEIGHT / 2, AXIS_WIDTH - 5);
+      }
+
+      // the bars, grouped by category
+      double max = tick * TICKS;
+      int groupWidth = plotWidth / Math.max(1, categories.size());
+      int barWidth = Math.max(1, (groupWidth * 8 / 10) / Math.max(1, series.size()));
+      for (int c = 0; c < categories.size(); c++)
+      {
+         int groupLeft = plotLeft + c * groupWidth;
+         int x = groupLeft + (groupWidth - barWidth * series.size()) / 2;
+         for (int s = 0; s < series.size(); s++)
+         {
+            JSONObject oneSeries = series.get(s).isObject();
+            double value = getValue(oneSeries.get("values").isArray(), c);
+            int barHeight = (int) Math.round(plotHeight * Math.max(0, value) / max);
+            String name = oneSeries.get("name").isString().stringValue();
+            addBox("barChart-bar", getColor(oneSeries, s), x + s * barWidth, plotTop + plotHeight - barHeight,
+                   barWidth, barHeight, name + ": " + VALUE_FORMAT.format(value));
+         }
+         addLabel(categories.get(c).isString().stringValue(), "barChart-category", groupLeft, plotTop + plotHeight + 2, groupWidth);
+      }
+      addLabel(data.get("period").isString().stringValue(), "barChart-axisLabel", plotLeft, plotTop + plotHeight + LABEL_HEIGHT, plotWidth);
+
+      // legend
+      HorizontalPanel legend = new HorizontalPanel();
+      legend.setStyleName("barChart-legend");
+      for (int s = 0; s < series.size(); s++)
+      {
+         SimplePanel swatch = new SimplePanel();
+         swatch.setStyleName("barChart-swatch");
+         DOM.setStyleAttribute(swatch.getElement(), "backgroundColor", getColor(series.get(s).isObject(), s));
+         legend.add(swatch);
+         legend.add(new Label(series.get(s).isObject().get("name").isString().stringValue()));
+      }
+      panel.add(legend, plotLeft, height - LEGEND_HEIGHT - MARGIN / 2);
+
+      double failures = data.get("failures").isNumber().doubleValue();
+      if (failures > 0)
+         addLabel((int) failures + " equipment could not be read", "barChart-warning", 0, TITLE_HEIGHT - 14, width);
+   }
+
+   // Returns the series' color from the data (as chosen by the server), or one of the default colors
+   private static String getColor(JSONObject series, int index)
+   {
+      JSONValue color = series.get("color");
+      if (color != null && color.isString() != null)
+         return color.isString().stringValue();
+      return COLORS[index % COLORS.length];
+   }
+
+   private static double getMaxValue(JSONArray series)
+   {
+      double max = 0;
+      for (int s = 0; s < series.size(); s++)
+      {
+         JSONArray values = series.get(s).isObject().get("values").isArray();
+         for (int i = 0; i < values.size(); i++)
+            max = Math.max(max, getValue(values, i));
+      }
+      return max;
+   }
+
+   private static double getValue(JSONArray values, int index)
+   {
+      JSONValue value = index < values.size() ? values.get(index) : null;
+      JSONNumber number = value == null ? null : value.isNumber();
+      return number == null ? 0 : number.doubleValue();
+   }
+
+   /**<!====== getTickSize ===================================================>
+      Returns a round (1, 2 or 5 times a power of ten) tick size such that
+      the ticks cover the given maximum value.
+   <!=======================================================================>*/
+   private static double getTickSize(double max)
+   {
+      if (max <= 0)
+         return 1;
+      double magnitude = Math.pow(10, Math.floor(Math.log(max / TICKS) / Math.log(10)));
+      for (int multiple : new int[] { 1, 2, 5, 10 })
+      {
+         if (magnitude * multiple * TICKS >= max)
+            return magnitude * multiple;
+      }
+      return magnitude * 10;
+   }
+
+   private void addLabel(String text, String style, int left, int top, int labelWidth)
+   {
+      Label label = new Label(text);
+      label.setStyleName(style);
+      label.setWidth(labelWidth + "px");
+      panel.add(label, left, top);
+   }
+
+   private void addBox(String style, String color, int left, int top, int boxWidth, int boxHeight, String title)
+   {
+      SimplePanel box = new SimplePanel();
+      box.setStyleName(style);
+      if (color != null)
+         DOM.setStyleAttribute(box.getElement(), "backgroundColor", color);
+      box.setPixelSize(boxWidth, boxHeight);
+      if (title != null)
+         box.setTitle(title);
+      panel.add(box, left, top);
+   }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.client;
+
+import com.google.gwt.user.client.rpc.IsSerializable;
+
+import java.util.*;
+
+/**<!=========================================================================>
+   Compact form of a whole tree of {@link TreeEntry} objects, used to send
+   large static trees to the client.  Instead of a graph of objects, the nodes
+   are stored in flat arrays in depth first order:
+   <ul>
+     <li>each node refers to its parent by index,</li>
+     <li>each path is sent as the number of characters it shares with the
+         parent's path plus the remaining suffix, and</li>
+     <li>trend source names are stored once in a dictionary and referred to
+         by index.</li>
+   </ul>
+   On the client, the TreeEntry objects are only created when they are asked
+   for (see {@link #getEntry} and {@link #getChildren}).
+<!==========================================================================>*/
+public class CompactTree implements IsSerializable
+{
+   private static final int ALLOWS_CHILDREN = 1;
+
+   private String[] sourceNames;
+   private String[] names;
+   private int[] parents;
+   private int[] pathPrefixLengths;
+   private String[] pathSuffixes;
+   private int[] flags;
+   private int[] sourceStarts;   // sources of node i are sourceIds[sourceStarts[i]] to sourceIds[sourceStarts[i+1]-1]
+   private int[] sourceIds;
+
+   // rebuilt on the client as needed
+   private transient String[] paths;
+   private transient TreeEntry.TrendSource[] sources;
+   private transient TreeEntry[] entries;
+   private transient boolean[] childrenAttached;
+   private transient int[] childStarts;
+   private transient int[] childIndexes;
+
+   public CompactTree() { }
+
+   /**<!====== encode ========================================================>
+      Creates the compact form of the tree under the given root.
+   <!=======================================================================>*/
+   public static CompactTree encode(TreeEntry root)
+   {
+      Encoder encoder = new Encoder();
+      encoder.add(root, -1, "");
+      return encoder.finish();
+   }
+
+   public int size() { return names.length; }
+
+   public TreeEntry getRoot() { return getEntry(0); }
+
+   /**<!====== getEntry ======================================================>
+      Returns the TreeEntry for the given node, creating it the first time.
+      The entry's children are not filled in until {@link #getChildren} is
+      called for the node.
+   <!=======================================================================>*/
+   public TreeEntry getEntry(int node)
+   {
+      if (entries == null)
+         entries = new TreeEntry[names.length];
+
+      TreeEntry entry = entries[node];
+      if (entry == null)
+      {
+         entry = new TreeEntry();
+         entry.setName(names[node]);
+         entry.setPath(getPath(node));
+         entry.setAllowsChildren((flags[node] & ALLOWS_CHILDREN) != 0);
+         for (int i = sourceStarts[node]; i < sourceStarts[node + 1]; i++)
+            entry.addTrendSource(getSource(sourceIds[i]));
+         entries[node] = entry;
+      }
+      return entry;
+   }
+
+   public int getChildCount(int node)
+   {
+      buildChildIndexes();
+      return childStarts[node + 1] - childStarts[node];
+   }
+
+   public int getChild(int node, int index)
+   {
+      buildChildIndexes();
+      return childIndexes[childStarts[node] + index];
+   }
+
+   /**<!====== getChildren ===================================================>
+      Returns the entries for the children of the given node, and adds them
+      as children of the node's own entry (the first time).
+   <!=======================================================================>*/
+   public List<TreeEntry> getChildren(int node)
+   {
+      if (childrenAttached == null)
+         childrenAttached = new boolean[names.length];
+
+      TreeEntry parent = getEntry(node);
+      if (!childrenAttached[node])
+      {
+         int count = getChildCount(node);
+         for (int i = 0; i < count; i++)
+            parent.addChild(getEntry(getChild(node, i)));
+         childrenAttached[node] = true;
+      }
+      return parent.getChildren();
+   }
+
+   private String getPath(int node)
+   {
+      if (paths == null)
+         paths = new String[names.length];
+
+      String path = paths[node];
+      if (path == null)
+      {
+         String prefix = parents[node] < 0 ? "" : getPath(parents[node]).substring(0, pathPrefixLengths[node]);
+         path = prefix + pathSuffixes[node];
+         paths[node] = path;
+      }
+      return path;
+   }
+
+   private TreeEntry.TrendSource getSource(int id)
+   {
+      if (sources == null)
+         sources = new TreeEntry.TrendSource[sourceNames.length];
+
+      if (sources[id] == null)
+      {
+         sources[id] = new TreeEntry.TrendSource();
+         sources[id].setName(sourceNames[id]);
+      }
+      return sources[id];
+   }
+
+   private void buildChildIndexes()
+   {
+      if (childStarts != null)
+         return;
+
+      int count = names.length;
+      childStarts = new int[count + 1];
+      for (int node = 1; node < count; node++)
+         ++childStarts[parents[node] + 1];
+      for (int node = 0; node < count; node++)
+         childStarts[node + 1] += childStarts[node];
+
+      // nodes are in depth first order, so children are filled in in their original order
+      int[] next = new int[count];
+      for (int node = 0; node < count; node++)
+         next[node] = childStarts[node];
+      childIndexes = new int[Math.max(0, count - 1)];
+      for (int node = 1; node < count; node++)
+         childIndexes[next[parents[node]]++] = node;
+   }
+
+   /**<!=========================================================================>
+      Collects the nodes of a tree (depth first) into growable lists before
+      they are copied into the arrays that get sent.
+   <!==========================================================================>*/
+   private static class Encoder
+   {
+      private final Map<String, Integer> sourceIdsByName = new HashMap<String, Integer>();
+      private final List<String> sourceNames = new ArrayList<String>();
+      private final List<String> names = new ArrayList<String>();
+      private final List<Integer> parents = new ArrayList<Integer>();
+      private final List<Integer> pathPrefixLengths = new ArrayList<Integer>();
+      private final List<String> pathSuffixes = new ArrayList<String>();
+      private final List<Integer> flags = new ArrayList<Integer>();
+      private final List<Integer> sourceStarts = new ArrayList<Integer>();
+      private final List<Integer> sourceIds = new ArrayList<Integer>();
+
+      private void add(TreeEntry entry, int parent, String parentPath)
+      {
+         int node = names.size();
+         String path = entry.getPath();
+         int prefix = commonPrefixLength(parentPath, path);
+
+         names.add(entry.getName());
+         parents.add(parent);
+         pathPrefixLengths.add(prefix);
+         pathSuffixes.add(path.substring(prefix));
+         flags.add(entry.isAllowsChildren() ? ALLOWS_CHILDREN : 0);
+         sourceStarts.add(sourceIds.size());
+         for (TreeEntry.TrendSource source : entry.getTrendSources())
+            sourceIds.add(getSourceId(source.getName()));
+
+         for (TreeEntry child : entry.getChildren())
+            add(child, node, path);
+      }
+
+      private int getSourceId(String name)
+      {
+         Integer id = sourceIdsByName.get(name);
+         if (id == null)
+         {
+            id = sourceNames.size();
+            sourceNames.add(name);
+            sourceIdsByName.put(name, id);
+         }
+         return id;
+      }
+
+      private static int commonPrefixLength(String first, String second)
+      {
+         int max = Math.min(first.length(), second.length());
+         int i = 0;
+         while (i < max && first.charAt(i) == second.charAt(i))
+            ++i;
+         return i;
+      }
+
+      private CompactTree finish()
+      {
+         sourceStarts.add(sourceIds.size());
+
+         CompactTree tree = new CompactTree();
+         tree.sourceNames = sourceNames.toArray(new String[sourceNames.size()]);
+         tree.names = names.toArray(new String[names.size()]);
+         tree.pathSuffixes = pathSuffixes.toArray(new String[pathSuffixes.size()]);
+         tree.parents = toArray(parents);
+         tree.pathPrefixLengths = toArray(pathPrefixLengths);
+         tree.flags = toArray(flags);
+         tree.sourceStarts = toArray(sourceStarts);
+         tree.sourceIds = toArray(sourceIds);
+         return tree;
+      }
+
+      private static int[] toArray(List<Integer> values)
+      {
+         int[] result = new int[values.size()];
+         for (int i = 0; i < result.length; i++)
+            result[i] = values.get(i);
+         return result;
+      }
+   }
+}
@@ -22,8 +22,17 @@
 
 package com.controlj.addon.gwttree.client;
 
+import com.google.gwt.event.dom.client.ErrorEvent;
+import com.google.gwt.event.dom.client.ErrorHandler;
+import com.google.gwt.event.dom.client.LoadEvent;
+import com.google.gwt.event.dom.client.LoadHandler;
 import com.google.gwt.event.logical.shared.SelectionEvent;
 import com.google.gwt.event.logical.shared.SelectionHandler;
+import com.google.gwt.http.client.*;
+import com.google.gwt.json.client.JSONParser;
+import com.google.gwt.user.client.Command;
+import com.google.gwt.user.client.Random;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.ui.*;
 
 import java.util.*;
@@ -32,14 +41,62 @@ import java.util.*;
    Manages the tabs and their associated graphs.  This class is responsible for
    showing the correct tabs based on the items that have been selected by the
    user in the tree, and fetching and displaying the graph for a single tab.
+   The graph is either an image rendered by the server, or drawn in the
+   browser from the graph's data (see {@link #setClientRendering}).
+   <p/>
+   Each tab keeps the graph it last loaded, and it is only fetched again
+   when the trend, equipment, date or range change.  Tabs whose equipment
+   did not change are kept when the selection changes.  Once the selected
+   graph has loaded and the page is idle, the graphs of the other tabs are
+   fetched one at a time so switching tabs is instant.  This stops as soon
+   as another tab, date or selection is picked.
+   <p/>
+   Changes to the checked equipment and to the date or range are only acted
+   on once they have stopped for a moment (the "graphDebounceMillis"
+   setting), so clicking through several of them fetches one graph.
 <!==========================================================================>*/
 public class GraphManager
 {
    private static final String EMPTY_GRAPH = "../default.gif";
+   private static final int GRAPH_WIDTH = 600;
+   private static final int GRAPH_HEIGHT = 400;
+   private static final int PREFETCH_DELAY = 500;   // milliseconds after the selected graph loads before fetching the others
+   private static final int DEFAULT_DEBOUNCE_MILLIS = 300;
+
+   // identifies this page to the server, so a newer request only replaces older ones from the same page
+   private static final String VIEW_ID = Integer.toString(Random.nextInt(Integer.MAX_VALUE), 36);
 
    private final GraphFetcher fetcher = new GraphFetcher();
    private final List<Tab> tabs = new ArrayList<Tab>();
    private final TabPanel tabPanel = new DecoratedTabPanel();
+   private int generation = 0;   // changed whenever the graph to show changes, which stops any prefetching
+   private final Timer prefetchTimer = new Timer()
+   {
+      @Override public void run()
+      {
+         prefetch(generation, 0);
+      }
+   };
+
+   // changes waiting for the debounce delay to pass
+   private final int debounceMillis = Util.getSetting("graphDebounceMillis", DEFAULT_DEBOUNCE_MILLIS);
+   private Set<TreeEntry> pendingEntries;
+   private final Timer selectionTimer = new Timer()
+   {
+      @Override public void run()
+      {
+         Set<TreeEntry> checkedEntries = pendingEntries;
+         pendingEntries = null;
+         showTabs(checkedEntries);
+      }
+   };
+   private final Timer updateTimer = new Timer()
+   {
+      @Override public void run()
+      {
+         updateSelected();
+      }
+   };
 
    /**<!====== createPanel ===================================================>
       Creates and returns the panel that contains the tabs and graph.  Used when
@@ -52,27 +109,79 @@ public class GraphManager
       {
          @Override public void onSelection(SelectionEvent<Integer> selection)
          {
-            Tab selectedTab = tabs.get(selection.getSelectedItem());
-            fetcher.update(selectedTab);
+            updateSelected();
          }
       });
 
       return tabPanel;
    }
 
+   /**<!====== updateSelected ================================================>
+      Shows the selected tab's graph (fetching it if needed), and schedules
+      fetching the other tabs' graphs once it has loaded.
+   <!=======================================================================>*/
+   private void updateSelected()
+   {
+      updateTimer.cancel();
+      final int updateGeneration = stopPrefetching();
+      fetcher.update(getSelected(), new Command()
+      {
+         public void execute()
+         {
+            if (updateGeneration == generation)
+               prefetchTimer.schedule(PREFETCH_DELAY);
+         }
+      });
+   }
+
+   private int stopPrefetching()
+   {
+      prefetchTimer.cancel();
+      return ++generation;
+   }
+
+   /**<!====== prefetch ======================================================>
+      Fetches the graph of the first tab from the given index that is not
+      selected, then continues with the next once it has loaded.  Stops if
+      the graph to show has changed since the prefetching started.
+   <!=======================================================================>*/
+   private void prefetch(final int prefetchGeneration, int index)
+   {
+      if (prefetchGeneration != generation)
+         return;
+
+      if (index == tabPanel.getTabBar().getSelectedTab())
+         ++index;
+      if (index >= tabs.size())
+         return;
+
+      final int next = index + 1;
+      fetcher.update(tabs.get(index), new Command()
+      {
+         public void execute()
+         {
+            prefetch(prefetchGeneration, next);
+         }
+      });
+   }
+
    /**<!====== reset =========================================================>
       Resets the view to show the default "Graph" tab with the "Select something"
       image.  Called whenever the user changes tree options.
    <!=======================================================================>*/
    public void reset()
    {
+      selectionTimer.cancel();
+      updateTimer.cancel();
+      stopPrefetching();
+      pendingEntries = null;
       clearTabs();
       showEmptyTab();
    }
 
    private void showEmptyTab()
    {
-      addGraphTab("Graph", Collections.<TreeEntry>emptyList());
+      addTab(new Tab("Graph", Collections.<TreeEntry>emptyList()));
       tabPanel.selectTab(0);
    }
 
@@ -83,14 +192,28 @@ public class GraphManager
          tabPanel.remove(0);
    }
 
-   /**<!====== reset =========================================================>
-      Changes the date for the selected graph (and future graphs).  Called when
-      a new date is picked in from the calendar.
+   /**<!====== updateSelectedGraph ===========================================>
+      Changes the date and the number of days (ending with that date) for the
+      selected graph (and future graphs).  Called when a new date or range is
+      picked in from the calendar.  The graph is fetched once the date and
+      range have not changed for the debounce delay.
    <!=======================================================================>*/
-   public void updateSelectedGraph(Date date)
+   public void updateSelectedGraph(Date date, int days)
    {
       fetcher.date = date;
-      fetcher.update(getSelected());
+      fetcher.days = days;
+      stopPrefetching();
+      updateTimer.schedule(debounceMillis);
+   }
+
+   /**<!====== setClientRendering ============================================>
+      Chooses whether graphs are drawn in the browser from their data (which
+      saves the server from rendering images) or rendered by the server.
+   <!=======================================================================>*/
+   public void setClientRendering(boolean clientRendering)
+   {
+      fetcher.clientRendering = clientRendering;
+      updateSelected();
    }
 
    private Tab getSelected()
@@ -101,9 +224,21 @@ public class GraphManager
    /**<!====== selectedEqsChanged ============================================>
       Changes the available tabs across the top and autoselects the first one
       for displaying the graph.  Called whenever the user checks/unchecks an
-      equipment in the tree.
+      equipment in the tree.  The tabs are changed once the checked equipment
+      have not changed for the debounce delay.
    <!=======================================================================>*/
    public void selectedEqsChanged(Set<TreeEntry> checkedEntries)
+   {
+      pendingEntries = checkedEntries;
+      stopPrefetching();
+      selectionTimer.schedule(debounceMillis);
+   }
+
+   /**<!====== showTabs ======================================================>
+      Shows a tab for each trend of the checked equipment.  Tabs for the same
+      trend and equipment as before are kept (with their graphs).
+   <!=======================================================================>*/
+   private void showTabs(Set<TreeEntry> checkedEntries)
    {
       Set<String> allTrends = new TreeSet<String>();
       for (TreeEntry entry : checkedEntries)
@@ -111,6 +246,9 @@ public class GraphManager
             allTrends.add(source.getName());
 
       Tab selected = getSelected();
+      Map<String, Tab> oldTabs = new HashMap<String, Tab>();
+      for (Tab tab : tabs)
+         oldTabs.put(tab.name, tab);
       clearTabs();
 
       if (allTrends.isEmpty())
@@ -122,7 +260,9 @@ public class GraphManager
          int selectedIdx = 0;
          for (String trend : allTrends)
          {
-            addGraphTab(trend, findEqsWithTrend(trend, checkedEntries));
+            List<TreeEntry> eqs = findEqsWithTrend(trend, checkedEntries);
+            Tab oldTab = oldTabs.get(trend);
+            addTab(oldTab != null && oldTab.hasEqs(eqs) ? oldTab : new Tab(trend, eqs));
             if (trend.equals(selected.name))
                selectedIdx = tabs.size() - 1;
          }
@@ -151,11 +291,10 @@ public class GraphManager
       return false;
    }
 
-   private void addGraphTab(String name, List<TreeEntry> eqs)
+   private void addTab(Tab tab)
    {
-      Tab tab = new Tab(name, eqs);
       tabs.add(tab);
-      tabPanel.add(tab.createPanel(), tab.getTitle());
+      tabPanel.add(tab.getPanel(), tab.getTitle());
    }
 
    /**<!=========================================================================>
@@ -164,38 +303,134 @@ public class GraphManager
    private static class GraphFetcher
    {
       private Date date = new Date();
+      private int days = 1;
+      private boolean clientRendering;
+
+      /**<!====== update ====================================================>
+         Shows the tab's graph for the current date and range, fetching it
+         unless the tab already has (or is fetching) that graph.
+         <!      Name          Description>
+         @param  tab           the tab to update.
+         @param  loaded        executed once the graph has loaded (or failed
+                               to load).
+      <!===================================================================>*/
+      public void update(Tab tab, Command loaded)
+      {
+         if (clientRendering && !tab.eqs.isEmpty())
+         {
+            tab.showChart();
+            String url = Util.makeWebAppURL("servlet/graphdata", makeParams(tab.name, tab.eqs));
+            if (url.equals(tab.dataUrl))
+               tab.whenLoaded(tab.dataLoaded, loaded);
+            else
+               requestData(tab, url, loaded);
+         }
+         else
+         {
+            tab.showImage();
+            String url = tab.eqs.isEmpty() ? EMPTY_GRAPH : Util.makeWebAppURL("servlet/graph", makeParams(tab.name, tab.eqs));
+            if (url.equals(tab.imageUrl))
+               tab.whenLoaded(tab.imageLoaded, loaded);
+            else
+            {
+               tab.imageUrl = url;
+               tab.imageLoaded = false;
+               tab.onLoaded = loaded;
+               tab.image.setUrl(url);
+            }
+         }
+      }
 
-      public void update(Tab tab)
+      private void requestData(final Tab tab, final String url, Command loaded)
       {
-         String url = tab.eqs.isEmpty() ? EMPTY_GRAPH : requestGraph(tab.name, tab.eqs);
-         tab.image.setUrl(url);
+         if (tab.dataRequest != null)
+            tab.dataRequest.cancel();   // superseded
+         tab.dataUrl = url;
+         tab.dataLoaded = false;
+         tab.onLoaded = loaded;
+         tab.chart.showMessage("Loading...");
+         RequestBuilder builder = new RequestBuilder(RequestBuilder.GET, url);
+         try
+         {
+            tab.dataRequest = builder.sendRequest(null, new RequestCallback()
+            {
+               public void onResponseReceived(Request request, Response response)
+               {
+                  // ignore the response if the tab has moved on to another graph
+                  if (!url.equals(tab.dataUrl))
+                     return;
+                  tab.dataRequest = null;
+
+                  if (response.getStatusCode() == Response.SC_OK)
+                  {
+                     tab.chart.setData(JSONParser.parse(response.getText()).isObject());
+                     tab.dataLoaded = true;
+                  }
+                  else
+                  {
+                     tab.chart.showMessage("Unable to get the graph data: " + response.getStatusText());
+                     tab.dataUrl = null;   // try again next time
+                  }
+                  tab.graphLoaded();
+               }
+
+               public void onError(Request request, Throwable exception)
+               {
+                  if (url.equals(tab.dataUrl))
+                  {
+                     tab.chart.showMessage("Unable to get the graph data: " + exception.getMessage());
+                     tab.dataUrl = null;
+                     tab.graphLoaded();
+                  }
+               }
+            });
+         }
+         catch (RequestException e)
+         {
+            tab.chart.showMessage("Unable to get the graph data: " + e.getMessage());
+            tab.dataUrl = null;
+            tab.graphLoaded();
+         }
       }
 
-      private String requestGraph(String sourceName, List<TreeEntry> eqs)
+      private String[] makeParams(String sourceName, List<TreeEntry> eqs)
       {
-         String[] params = new String[2+eqs.size()];
+         // "days" is left out of single day graphs, so any cached single day images are still used
+         int first = days > 1 ? 4 : 3;
+         String[] params = new String[first+eqs.size()];
          params[0] = "date="+date.getTime();
          params[1] = "trend="+sourceName;
+         params[2] = "view="+VIEW_ID;
+         if (days > 1)
+            params[3] = "days="+days;
          int idx = 0;
          for (TreeEntry entry : eqs)
          {
-            params[idx+2] = "eq" + idx + '=' + entry.getPath();
+            params[idx+first] = "eq" + idx + '=' + entry.getPath();
             ++idx;
          }
-
-         return Util.makeWebAppURL("servlet/graph", params);
+         return params;
       }
    }
 
    /**<!=========================================================================>
       Private helper class to maintain information about a given tab.  Each tab is
       for a single trend (whose name is stored in "name") and each such trend may
-      be located in multiple equipment (stored in "eqs").
+      be located in multiple equipment (stored in "eqs").  The tab remembers the
+      URLs of the graph it has loaded (or is loading).
    <!==========================================================================>*/
    private static class Tab
    {
       private String name;
+      private Widget panel;
       private Image image;
+      private String imageUrl;
+      private boolean imageLoaded;
+      private BarChart chart;
+      private String dataUrl;
+      private Request dataRequest;
+      private boolean dataLoaded;
+      private Command onLoaded;
       private List<TreeEntry> eqs;
 
       private Tab(String name, List<TreeEntry> eqs)
@@ -204,17 +439,87 @@ public class GraphManager
          this.eqs = eqs;
       }
 
-      public Widget createPanel()
+      public Widget getPanel()
+      {
+         if (panel == null)
+            panel = createPanel();
+         return panel;
+      }
+
+      private Widget createPanel()
       {
          FlowPanel graph = new FlowPanel();
          image = new Image(EMPTY_GRAPH);
-         image.setHeight("400");
-         image.setWidth("600");
+         imageUrl = EMPTY_GRAPH;
+         image.setHeight(String.valueOf(GRAPH_HEIGHT));
+         image.setWidth(String.valueOf(GRAPH_WIDTH));
+         image.addLoadHandler(new LoadHandler()
+         {
+            public void onLoad(LoadEvent event)
+            {
+               imageLoaded = true;
+               graphLoaded();
+            }
+         });
+         image.addErrorHandler(new ErrorHandler()
+         {
+            public void onError(ErrorEvent event)
+            {
+               imageUrl = null;   // try again next time
+               graphLoaded();
+            }
+         });
          graph.add(image);
+         chart = new BarChart(GRAPH_WIDTH, GRAPH_HEIGHT);
+         chart.setVisible(false);
+         graph.add(chart);
          graph.addStyleName("tabView");
          return graph;
       }
 
+      public boolean hasEqs(List<TreeEntry> eqs)
+      {
+         return new HashSet<TreeEntry>(this.eqs).equals(new HashSet<TreeEntry>(eqs));
+      }
+
+      /**<!====== whenLoaded ================================================>
+         Executes the command now if the graph has loaded, otherwise once it
+         has (in place of any command already waiting).
+      <!===================================================================>*/
+      public void whenLoaded(boolean loaded, Command command)
+      {
+         if (loaded)
+            command.execute();
+         else
+            onLoaded = command;
+      }
+
+      public void graphLoaded()
+      {
+         Command command = onLoaded;
+         onLoaded = null;
+         if (command != null)
+            command.execute();
+      }
+
+      public void showImage()
+      {
+         if (dataRequest != null)
+         {
+            dataRequest.cancel();
+            dataRequest = null;
+         }
+         dataUrl = null;
+         chart.setVisible(false);
+         image.setVisible(true);
+      }
+
+      public void showChart()
+      {
+         image.setVisible(false);
+         chart.setVisible(true);
+      }
+
       public String getTitle()
       {
          if (eqs.size() <= 1)
@@ -23,12 +23,17 @@
 package com.controlj.addon.gwttree.client;
 
 import com.google.gwt.core.client.EntryPoint;
+import com.google.gwt.event.dom.client.ChangeEvent;
+import com.google.gwt.event.dom.client.ChangeHandler;
 import com.google.gwt.event.logical.shared.ValueChangeEvent;
 import com.google.gwt.event.logical.shared.ValueChangeHandler;
 import com.google.gwt.user.client.ui.*;
+import com.google.gwt.user.datepicker.client.CalendarUtil;
 import com.google.gwt.user.datepicker.client.DatePicker;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 /**<!=========================================================================>
    Main GWT Module, this constructs the main page and wires together the other
@@ -39,6 +44,11 @@ public class MainPage implements EntryPoint
    private final GraphManager graphManager = new GraphManager();
    private final TreeManager treeManager = new TreeManager(graphManager);
    private final DatePicker picker = new DatePicker();
+   private final ListBox range = new ListBox();
+   private final List<Date> highlightedDates = new ArrayList<Date>();
+
+   private static final int[] RANGE_DAYS = { 1, 7, 14, 28 };
+   private static final String RANGE_STYLE = "dateRange";
 
    private void setupUI()
    {
@@ -61,15 +71,84 @@ public class MainPage implements EntryPoint
       {
          public void onValueChange(ValueChangeEvent<Date> event)
          {
-            graphManager.updateSelectedGraph(event.getValue());
+            rangeChanged();
          }
       });
       vpanel.add(picker);
+      vpanel.add(createRangePanel());
+
+      // drawing graphs in the browser saves the server from rendering images
+      CheckBox clientRendering = new CheckBox("Draw graphs in the browser");
+      clientRendering.addStyleName("clientRendering");
+      clientRendering.addValueChangeHandler(new ValueChangeHandler<Boolean>()
+      {
+         public void onValueChange(ValueChangeEvent<Boolean> event)
+         {
+            graphManager.setClientRendering(event.getValue());
+         }
+      });
+      vpanel.add(clientRendering);
       vpanel.add(treeManager.createPanel());
 
       return vpanel;
    }
 
+   /**<!====== createRangePanel ==============================================>
+      Creates the choice of how many days (ending with the picked date) to
+      graph.
+   <!=======================================================================>*/
+   private Widget createRangePanel()
+   {
+      for (int days : RANGE_DAYS)
+         range.addItem(days == 1 ? "1 day" : days + " days", String.valueOf(days));
+      range.addChangeHandler(new ChangeHandler()
+      {
+         public void onChange(ChangeEvent event)
+         {
+            rangeChanged();
+         }
+      });
+
+      HorizontalPanel panel = new HorizontalPanel();
+      panel.addStyleName("rangePanel");
+      panel.add(new Label("Range:"));
+      panel.add(range);
+      return panel;
+   }
+
+   private int getRangeDays()
+   {
+      return Integer.parseInt(range.getValue(range.getSelectedIndex()));
+   }
+
+   private void rangeChanged()
+   {
+      int days = getRangeDays();
+      highlightRange(picker.getValue(), days);
+      graphManager.updateSelectedGraph(picker.getValue(), days);
+   }
+
+   /**<!====== highlightRange ================================================>
+      Marks the days before the picked date that are included in the graphs.
+   <!=======================================================================>*/
+   private void highlightRange(Date date, int days)
+   {
+      if (!highlightedDates.isEmpty())
+      {
+         picker.removeStyleFromDates(RANGE_STYLE, highlightedDates);
+         highlightedDates.clear();
+      }
+
+      for (int i = 1; i < days; i++)
+      {
+         Date day = CalendarUtil.copyDate(date);
+         CalendarUtil.addDaysToDate(day, -i);
+         highlightedDates.add(day);
+      }
+      if (!highlightedDates.isEmpty())
+         picker.addStyleToDates(RANGE_STYLE, highlightedDates);
+   }
+
    private void configureTreeManager()
    {
       treeManager.setListener(new TreeManager.TreeSelectionListener()
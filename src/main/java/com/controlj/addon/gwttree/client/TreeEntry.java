@@ -33,14 +33,22 @@ import java.util.ArrayList;
    Class to hold information about each node in the tree.  Instances of this
    class get "remoted" to and from the server, so it has limits to the types of
    things it can hold (see the GWT documentation for details).
+   <p/>
+   Large trees are built (and cached) on the server, so the lists of children
+   and trend sources are only allocated once something is added to them.
+   Equipment never have children and most areas have no trend sources, so
+   this saves two lists for nearly every entry.
 <!==========================================================================>*/
 public class TreeEntry implements IsSerializable
 {
    private String name;
    private String path;
    private boolean allowsChildren = true;
-   private List<TreeEntry> children = new ArrayList<TreeEntry>();
-   private List<TrendSource> sources = new ArrayList<TrendSource>();
+   private boolean childrenLoaded = false;
+   private boolean descendantMatchKnown = false;
+   private boolean matchingDescendants = false;
+   private List<TreeEntry> children;   // null until a child is added
+   private List<TrendSource> sources;  // null until a source is added
 
    public TreeEntry() { }
 
@@ -53,12 +61,46 @@ public class TreeEntry implements IsSerializable
    public boolean isAllowsChildren() { return allowsChildren; }
    public void setAllowsChildren(boolean allowsChildren) { this.allowsChildren = allowsChildren; }
 
-   public List<TreeEntry> getChildren() { return Collections.unmodifiableList(children); }
-   public void addChild(TreeEntry child) { children.add(child); }
+   public List<TreeEntry> getChildren()
+   {
+      return children == null ? Collections.<TreeEntry>emptyList() : Collections.unmodifiableList(children);
+   }
+
+   public void addChild(TreeEntry child)
+   {
+      if (children == null)
+         children = new ArrayList<TreeEntry>();
+      children.add(child);
+   }
+
+   public void clearChildren() { children = null; }
+
+   /** True if the children of this entry have been fetched (for the dynamic tree, which fetches them on demand). */
+   public boolean isChildrenLoaded() { return childrenLoaded; }
+   public void setChildrenLoaded(boolean childrenLoaded) { this.childrenLoaded = childrenLoaded; }
+
+   /** True if the server knows whether this entry has descendants with matching trend sources (as of its last index, so only a hint). */
+   public boolean isDescendantMatchKnown() { return descendantMatchKnown; }
+   public boolean hasMatchingDescendants() { return matchingDescendants; }
+   public void setMatchingDescendants(boolean matchingDescendants)
+   {
+      this.descendantMatchKnown = true;
+      this.matchingDescendants = matchingDescendants;
+   }
+
+   public boolean hasTrendSources() { return sources != null; }
+
+   public Collection<TrendSource> getTrendSources()
+   {
+      return sources == null ? Collections.<TrendSource>emptyList() : Collections.unmodifiableCollection(sources);
+   }
 
-   public boolean hasTrendSources() { return !sources.isEmpty(); }
-   public Collection<TrendSource> getTrendSources() { return Collections.unmodifiableCollection(sources); }
-   public void addTrendSource(TrendSource source) { sources.add(source); }
+   public void addTrendSource(TrendSource source)
+   {
+      if (sources == null)
+         sources = new ArrayList<TrendSource>(2);
+      sources.add(source);
+   }
 
    public static class TrendSource implements IsSerializable, Comparable<TrendSource>
    {
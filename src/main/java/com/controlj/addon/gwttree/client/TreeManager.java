@@ -22,16 +22,15 @@
 
 package com.controlj.addon.gwttree.client;
 
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
 import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.*;
 import com.google.gwt.event.logical.shared.*;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 /**<!=========================================================================>
    The class is responsible for handling the tree.  It handles both the static
@@ -50,10 +49,23 @@ public class TreeManager
    }
 
    private static final String VIRTUAL_CHILD_NAME = "";
+   private static final int DEFAULT_DYNAMIC_PREFETCH_DEPTH = 2;
+   private static final int DEFAULT_VIRTUAL_TREE_THRESHOLD = 2000;
+   private static final int DEFAULT_CHILDREN_CACHE_SECONDS = 5 * 60;
+   private static final int BUILD_SLICE_MILLIS = 15;       // time spent building the static tree before letting the browser paint
+   private final int virtualTreeThreshold = Util.getSetting("virtualTreeThreshold", DEFAULT_VIRTUAL_TREE_THRESHOLD);
+   private final int dynamicPrefetchDepth = Util.getSetting("dynamicPrefetchDepth", DEFAULT_DYNAMIC_PREFETCH_DEPTH);   // levels of descendants fetched below the item opened
    private TreeSelectionListener listener;
    private TreeOptions options;
    private HorizontalPanel resultPanel;
    private Set<TreeEntry> checkedEntries = new HashSet<TreeEntry>();
+   private List<String> pendingChildLoads = new ArrayList<String>();
+   private int treeRequestCount = 0;   // lets work still running for a tree see that the tree was replaced
+
+   // the dynamic tree's children by parent path, and the items waiting for children being loaded
+   private final long childrenCacheMillis = Util.getSetting("childrenCacheSeconds", DEFAULT_CHILDREN_CACHE_SECONDS) * 1000L;
+   private final Map<String, CachedChildren> childrenCache = new HashMap<String, CachedChildren>();
+   private final Map<String, TreeItem> loadingItems = new HashMap<String, TreeItem>();
 
    public TreeManager(final GraphManager graphManager)
    {
@@ -127,6 +139,10 @@ public class TreeManager
    <!=======================================================================>*/
    public void requestTree()
    {
+      ++treeRequestCount;
+      childrenCache.clear();   // the children depend on the options
+      loadingItems.clear();
+      pendingChildLoads.clear();
       if (options.isStaticTree())
          requestStaticTree();
       else
@@ -135,34 +151,52 @@ public class TreeManager
 
    private void requestStaticTree()
    {
-      TreeService.App.getInstance().getStaticTreeRootEntry(options.getSourceNamesArray(), new AsyncCallback<TreeEntry>()
+      TreeService.App.getInstance().getCompactStaticTree(options.getSourceNamesArray(), new AsyncCallback<CompactTree>()
       {
          public void onFailure(Throwable caught)
          {
             Dialog.showHtmlErrorDialog("Error building tree", caught.toString());
          }
 
-         public void onSuccess(TreeEntry result)
+         public void onSuccess(CompactTree result)
          {
             setResultPanelContents(createStaticTree(result));
          }
       });
    }
 
-   private Tree createStaticTree(TreeEntry root)
+   /**<!====== createStaticTree ==============================================>
+      Creates the widget for a static tree.  Trees with more nodes than the
+      "virtualTreeThreshold" setting use a {@link VirtualTree}, which only
+      creates elements for the rows on screen.  Otherwise the items are
+      created a level at a time in short slices (see {@link IncrementalTreeBuild}),
+      so the top of the tree can be used while the rest is filled in.
+   <!=======================================================================>*/
+   private Widget createStaticTree(CompactTree tree)
    {
+      if (tree.size() > virtualTreeThreshold)
+      {
+         return new VirtualTree(tree, new VirtualTree.CheckHandler()
+         {
+            @Override public void checkChanged(TreeEntry entry, boolean checked)
+            {
+               setChecked(entry, checked);
+            }
+         });
+      }
+
       Tree staticTree = new Tree();
       staticTree.setAnimationEnabled(true);
-      staticTree.addItem(createTreeItemAndChildren(root));
-      return staticTree;
-   }
+      Label progress = new Label();
+      progress.setStyleName("tree-progress");
+      VerticalPanel panel = new VerticalPanel();
+      panel.add(progress);
+      panel.add(staticTree);
 
-   private TreeItem createTreeItemAndChildren(TreeEntry entry)
-   {
-      TreeItem item = createTreeItem(entry);
-      for (TreeEntry childEntry : entry.getChildren())
-         item.addItem(createTreeItemAndChildren(childEntry));
-      return item;
+      IncrementalTreeBuild build = new IncrementalTreeBuild(tree, staticTree, progress);
+      if (build.execute())   // the first slice shows at least the top levels straight away
+         Scheduler.get().scheduleIncremental(build);
+      return panel;
    }
 
    private TreeItem createTreeItem(final TreeEntry entry)
@@ -177,11 +211,7 @@ public class TreeManager
          {
             @Override public void onValueChange(ValueChangeEvent<Boolean> event)
             {
-               if (event.getValue())
-                  checkedEntries.add(entry);
-               else
-                  checkedEntries.remove(entry);
-               listener.selectionChanged();
+               setChecked(entry, event.getValue());
             }
          });
          item.setWidget(checkBox);
@@ -191,9 +221,18 @@ public class TreeManager
       return item;         
    }
 
+   private void setChecked(TreeEntry entry, boolean checked)
+   {
+      if (checked)
+         checkedEntries.add(entry);
+      else
+         checkedEntries.remove(entry);
+      listener.selectionChanged();
+   }
+
    private void requestDynamicTree()
    {
-      TreeService.App.getInstance().getDynamicTreeRootEntry(options.getSourceNamesArray(), new AsyncCallback<TreeEntry>()
+      TreeService.App.getInstance().getDynamicTreeRootEntry(options.getSourceNamesArray(), dynamicPrefetchDepth, new AsyncCallback<TreeEntry>()
       {
          public void onFailure(Throwable caught)
          {
@@ -210,15 +249,42 @@ public class TreeManager
    private TreeItem createDynamicTreeItem(TreeEntry entry)
    {
       TreeItem item = createTreeItem(entry);
+      if (entry.hasTrendSources() && replaceCheckedEntry(entry))
+         ((CheckBox) item.getWidget()).setValue(true);
       if (entry.isAllowsChildren())
          item.addItem(new TreeItem(VIRTUAL_CHILD_NAME));
+      if (isKnownEmpty(entry))
+         item.addStyleName("dynamicTree-noMatches");
       return item;
    }
 
+   // Children loaded again (once the cached ones are too old) are new entries, so they take the place of checked ones
+   private boolean replaceCheckedEntry(TreeEntry entry)
+   {
+      for (TreeEntry checked : checkedEntries)
+      {
+         if (checked.getPath().equals(entry.getPath()))
+         {
+            checkedEntries.remove(checked);
+            checkedEntries.add(entry);
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // The server found nothing matching the filter below the area when it last indexed the system.
+   // Equipment may have been added since, so the area can still be opened to load its children.
+   private boolean isKnownEmpty(TreeEntry entry)
+   {
+      return entry.isAllowsChildren() && entry.isDescendantMatchKnown() && !entry.hasMatchingDescendants();
+   }
+
    private Tree createDynamicTree(TreeEntry root)
    {
       Tree dynamicTree = new Tree();
       dynamicTree.setAnimationEnabled(true);
+      cacheChildren(root);
       dynamicTree.addItem(createDynamicTreeItem(root));
 
       // Add a handler to get the next set of children
@@ -226,36 +292,261 @@ public class TreeManager
       {
          @Override public void onOpen(OpenEvent<TreeItem> event)
          {
-            TreeEntry entry = (TreeEntry) event.getTarget().getUserObject();
-            requestDynamicTreeChildren(event.getTarget(), entry);
+            TreeItem item = event.getTarget();
+            TreeEntry entry = (TreeEntry) item.getUserObject();
+            List<TreeEntry> children = getCachedChildren(entry.getPath());
+            if (children == null)
+               requestDynamicTreeChildren(item);
+            else if (hasVirtualChild(item))
+               showDynamicTreeChildren(item, children);   // loaded or prefetched before, no need to ask the server
+            // otherwise the children are already showing
          }
       });
       return dynamicTree;
    }
 
-   private void requestDynamicTreeChildren(final TreeItem parentItem, final TreeEntry parent)
+   /**<!====== getCachedChildren =============================================>
+      Returns the children loaded for the given path within the last
+      "childrenCacheSeconds" (a setting, 5 minutes by default), or null if
+      they need to be loaded (again).
+   <!=======================================================================>*/
+   private List<TreeEntry> getCachedChildren(String path)
+   {
+      CachedChildren cached = childrenCache.get(path);
+      if (cached == null)
+         return null;
+      if (Duration.currentTimeMillis() - cached.loaded > childrenCacheMillis)
+      {
+         childrenCache.remove(path);
+         return null;
+      }
+      return cached.children;
+   }
+
+   // Caches the children of the entry and of any of its descendants that came with it
+   private void cacheChildren(TreeEntry entry)
    {
-      TreeService.App.getInstance().getDynamicTreeChildren(parent, new AsyncCallback<List<TreeEntry>>()
+      if (!entry.isChildrenLoaded())
+         return;
+
+      childrenCache.put(entry.getPath(), new CachedChildren(entry.getChildren()));
+      for (TreeEntry child : entry.getChildren())
+         cacheChildren(child);
+   }
+
+   /**<!====== requestDynamicTreeChildren ====================================>
+      Queues the item to have its children loaded.  All the items queued while
+      handling the current browser event are loaded together once it is done,
+      using a single batch request if there is more than one.  If the item's
+      children are already being loaded, they are shown in it when they arrive
+      instead of being asked for again.
+   <!=======================================================================>*/
+   private void requestDynamicTreeChildren(TreeItem parentItem)
+   {
+      String path = ((TreeEntry) parentItem.getUserObject()).getPath();
+      boolean loading = loadingItems.containsKey(path);
+      loadingItems.put(path, parentItem);
+      if (loading)
+         return;
+
+      if (pendingChildLoads.isEmpty())
       {
-         public void onFailure(Throwable caught)
+         Scheduler.get().scheduleDeferred(new Scheduler.ScheduledCommand()
          {
-            Dialog.showHtmlErrorDialog("Error getting children", caught.getMessage());
-         }
+            @Override public void execute()
+            {
+               loadPendingChildren();
+            }
+         });
+      }
+      pendingChildLoads.add(path);
+   }
 
-         public void onSuccess(List<TreeEntry> result)
+   private void loadPendingChildren()
+   {
+      final List<String> parentPaths = pendingChildLoads;
+      final int requestCount = treeRequestCount;
+      pendingChildLoads = new ArrayList<String>();
+      if (parentPaths.isEmpty())
+         return;   // the tree was replaced
+
+      if (parentPaths.size() == 1)
+      {
+         final String parentPath = parentPaths.get(0);
+         TreeEntry parent = (TreeEntry) loadingItems.get(parentPath).getUserObject();
+         TreeService.App.getInstance().getDynamicTreeChildren(parent, dynamicPrefetchDepth, new AsyncCallback<List<TreeEntry>>()
          {
-            parentItem.removeItems(); // get rid of the "virtual child"
-            for (TreeEntry child : result)
+            public void onFailure(Throwable caught)
+            {
+               childrenFailed(requestCount, parentPaths);
+               Dialog.showHtmlErrorDialog("Error getting children", caught.getMessage());
+            }
+
+            public void onSuccess(List<TreeEntry> result)
             {
-               parent.addChild(child);
-               parentItem.addItem(createDynamicTreeItem(child));
+               childrenLoaded(requestCount, parentPath, result);
+            }
+         });
+      }
+      else
+      {
+         TreeService.App.getInstance().getDynamicTreeChildrenBatch(parentPaths, dynamicPrefetchDepth, new AsyncCallback<Map<String, List<TreeEntry>>>()
+         {
+            public void onFailure(Throwable caught)
+            {
+               childrenFailed(requestCount, parentPaths);
+               Dialog.showHtmlErrorDialog("Error getting children", caught.getMessage());
+            }
+
+            public void onSuccess(Map<String, List<TreeEntry>> result)
+            {
+               List<String> failedPaths = new ArrayList<String>();
+               for (String parentPath : parentPaths)
+               {
+                  List<TreeEntry> children = result.get(parentPath);
+                  if (children == null)
+                     failedPaths.add(parentPath);
+                  else
+                     childrenLoaded(requestCount, parentPath, children);
+               }
+
+               String failedNames = childrenFailed(requestCount, failedPaths);
+               if (failedNames.length() > 0)
+                  Dialog.showHtmlErrorDialog("Error getting children", "Could not get the children of " + failedNames);
+            }
+         });
+      }
+   }
+
+   // Closes the items whose children could not be loaded, so opening them again retries,
+   // and returns their names for the error message
+   private String childrenFailed(int requestCount, List<String> parentPaths)
+   {
+      StringBuilder names = new StringBuilder();
+      if (requestCount == treeRequestCount)
+      {
+         for (String parentPath : parentPaths)
+         {
+            TreeItem parentItem = loadingItems.remove(parentPath);
+            if (parentItem != null)
+            {
+               parentItem.setState(false);
+               if (names.length() > 0)
+                  names.append(", ");
+               names.append(((TreeEntry) parentItem.getUserObject()).getName());
             }
          }
-      });
+      }
+      return names.toString();
+   }
+
+   private void childrenLoaded(int requestCount, String parentPath, List<TreeEntry> children)
+   {
+      if (requestCount != treeRequestCount)
+         return;   // for a tree that has been replaced
+
+      TreeItem parentItem = loadingItems.remove(parentPath);
+      if (parentItem != null && children != null)
+         addDynamicTreeChildren(parentItem, children);
+   }
+
+   private void addDynamicTreeChildren(TreeItem parentItem, List<TreeEntry> children)
+   {
+      TreeEntry parent = (TreeEntry) parentItem.getUserObject();
+      parent.clearChildren();
+      for (TreeEntry child : children)
+         parent.addChild(child);
+      parent.setChildrenLoaded(true);
+      cacheChildren(parent);
+      showDynamicTreeChildren(parentItem, parent.getChildren());
+   }
+
+   private void showDynamicTreeChildren(TreeItem parentItem, List<TreeEntry> children)
+   {
+      parentItem.removeItems(); // get rid of the "virtual child" (or the old children)
+      for (TreeEntry child : children)
+         parentItem.addItem(createDynamicTreeItem(child));
+   }
+
+   private boolean hasVirtualChild(TreeItem item)
+   {
+      return item.getChildCount() == 1 && item.getChild(0).getUserObject() == null;
    }
 
    public Set<TreeEntry> getCheckedEntries()
    {
       return Collections.unmodifiableSet(checkedEntries);
    }
+
+   private static class CachedChildren
+   {
+      private final List<TreeEntry> children;
+      private final double loaded = Duration.currentTimeMillis();
+
+      private CachedChildren(List<TreeEntry> children)
+      {
+         this.children = children;
+      }
+   }
+
+   /**<!=========================================================================>
+      Creates the items of a static tree breadth first, a slice of time at a
+      time, so each level appears before the ones below it and the browser
+      stays responsive.  Shows the progress in a label that is hidden once
+      the tree is complete, and stops if another tree has been requested.
+   <!==========================================================================>*/
+   private class IncrementalTreeBuild implements Scheduler.RepeatingCommand
+   {
+      private final CompactTree tree;
+      private final Label progress;
+      private final int requestCount = treeRequestCount;
+      private final List<TreeItem> pendingItems = new ArrayList<TreeItem>();   // items whose children are still to be added
+      private final List<Integer> pendingNodes = new ArrayList<Integer>();
+      private int next = 0;
+      private int created = 0;
+
+      private IncrementalTreeBuild(CompactTree tree, Tree widget, Label progress)
+      {
+         this.tree = tree;
+         this.progress = progress;
+         widget.addItem(createItem(0));
+      }
+
+      @Override public boolean execute()
+      {
+         if (requestCount != treeRequestCount)
+            return false;
+
+         Duration duration = new Duration();
+         while (next < pendingItems.size() && duration.elapsedMillis() < BUILD_SLICE_MILLIS)
+         {
+            TreeItem item = pendingItems.get(next);
+            int node = pendingNodes.get(next);
+            pendingItems.set(next, null);   // no longer needed
+            ++next;
+
+            tree.getChildren(node);   // hooks up the entry's children
+            int childCount = tree.getChildCount(node);
+            for (int i = 0; i < childCount; i++)
+               item.addItem(createItem(tree.getChild(node, i)));
+         }
+
+         boolean more = next < pendingItems.size();
+         progress.setText("Loading tree... " + (created * 100 / tree.size()) + "%");
+         progress.setVisible(more);
+         return more;
+      }
+
+      private TreeItem createItem(int node)
+      {
+         TreeItem item = createTreeItem(tree.getEntry(node));
+         if (tree.getChildCount(node) > 0)
+         {
+            pendingItems.add(item);
+            pendingNodes.add(node);
+         }
+         ++created;
+         return item;
+      }
+   }
 }
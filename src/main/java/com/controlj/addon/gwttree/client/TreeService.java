@@ -27,6 +27,7 @@ import com.google.gwt.user.client.rpc.RemoteService;
 import com.google.gwt.user.client.rpc.ServiceDefTarget;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**<!=========================================================================>
@@ -37,9 +38,17 @@ import java.util.Set;
 public interface TreeService extends RemoteService
 {
    TreeEntry getStaticTreeRootEntry(String[] sourceNames) throws Exception;
+   CompactTree getCompactStaticTree(String[] sourceNames) throws Exception;
    TreeEntry getDynamicTreeRootEntry(String[] sourceNames) throws Exception;
    List<TreeEntry> getDynamicTreeChildren(TreeEntry parent) throws Exception;
 
+   // These variants load prefetchDepth levels of descendants below the root or parent
+   // (see TreeEntry.isChildrenLoaded); the children variants always include the children.
+   // The batch maps each parent it could not load to null instead of failing as a whole.
+   TreeEntry getDynamicTreeRootEntry(String[] sourceNames, int prefetchDepth) throws Exception;
+   List<TreeEntry> getDynamicTreeChildren(TreeEntry parent, int prefetchDepth) throws Exception;
+   Map<String, List<TreeEntry>> getDynamicTreeChildrenBatch(List<String> parentPaths, int prefetchDepth) throws Exception;
+
    /**<!=========================================================================>
       Utility/Convenience class.
       Use TreeService.App.getInstance() to access static instance of TreeServiceAsync
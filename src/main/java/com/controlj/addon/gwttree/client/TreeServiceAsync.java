@@ -25,6 +25,7 @@ package com.controlj.addon.gwttree.client;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**<!=========================================================================>
@@ -35,6 +36,11 @@ import java.util.Set;
 public interface TreeServiceAsync
 {
    void getStaticTreeRootEntry(String[] sourceNames, AsyncCallback<TreeEntry> async);
+   void getCompactStaticTree(String[] sourceNames, AsyncCallback<CompactTree> async);
    void getDynamicTreeRootEntry(String[] sourceNames, AsyncCallback<TreeEntry> async);
-   void getDynamicTreeChildren(TreeEntry parent, AsyncCallback<List<TreeEntry>> async);   
+   void getDynamicTreeChildren(TreeEntry parent, AsyncCallback<List<TreeEntry>> async);
+
+   void getDynamicTreeRootEntry(String[] sourceNames, int prefetchDepth, AsyncCallback<TreeEntry> async);
+   void getDynamicTreeChildren(TreeEntry parent, int prefetchDepth, AsyncCallback<List<TreeEntry>> async);
+   void getDynamicTreeChildrenBatch(List<String> parentPaths, int prefetchDepth, AsyncCallback<Map<String, List<TreeEntry>>> async);
 }
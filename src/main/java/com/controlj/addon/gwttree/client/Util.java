@@ -23,12 +23,17 @@
 package com.controlj.addon.gwttree.client;
 
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.i18n.client.Dictionary;
+
+import java.util.MissingResourceException;
 
 /**<!=========================================================================>
    A utility class.
 <!==========================================================================>*/
 public class Util
 {
+   private static final String SETTINGS_NAME = "gwtTreeSettings";
+
    /**<!====== makeWebAppURL =================================================>
       Makes a URL to the current webapp (which means that users don't need to
       know the webapp name).  Also takes a sets of parameters and adds them to
@@ -47,5 +52,25 @@ public class Util
       }
       return bldr.toString();
    }
+
+   /**<!====== getSetting ====================================================>
+      Returns a number from the optional "gwtTreeSettings" object defined in
+      the host page, or the default if it is not set (or is not a number).
+   <!=======================================================================>*/
+   public static int getSetting(String name, int defaultValue)
+   {
+      try
+      {
+         return Integer.parseInt(Dictionary.getDictionary(SETTINGS_NAME).get(name).trim());
+      }
+      catch (MissingResourceException e)
+      {
+         return defaultValue;
+      }
+      catch (NumberFormatException e)
+      {
+         return defaultValue;
+      }
+   }
 }
 
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.client;
+
+import com.google.gwt.dom.client.*;
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.event.dom.client.ScrollEvent;
+import com.google.gwt.event.dom.client.ScrollHandler;
+import com.google.gwt.user.client.ui.Composite;
+import com.google.gwt.user.client.ui.HTML;
+import com.google.gwt.user.client.ui.ScrollPanel;
+
+/**<!=========================================================================>
+   A tree for very large static trees.  A GWT Tree creates a TreeItem (and
+   for equipment a CheckBox) for every node up front, which is too slow and
+   uses too much memory with thousands of nodes.  This tree shows the nodes
+   of a {@link CompactTree} as fixed height rows in a scroll panel, and only
+   creates elements for the expanded rows that are on screen.  The elements
+   are created again as the tree is scrolled, expanded or collapsed.
+   <p/>
+   Clicks are handled once for the whole tree and mapped back to the row's
+   node, so rows have no widgets or handlers of their own.  The checked
+   state is kept per node.
+<!==========================================================================>*/
+public class VirtualTree extends Composite
+{
+   /**<!=========================================================================>
+      Interface for when an entry is checked or unchecked.
+   <!==========================================================================>*/
+   public static interface CheckHandler
+   {
+      public void checkChanged(TreeEntry entry, boolean checked);
+   }
+
+   private static final int ROW_HEIGHT = 20;         // must match the virtualTree-row style
+   private static final int INDENT = 16;
+   private static final int EXTRA_ROWS = 10;         // rows created beyond each edge of the view for smooth scrolling
+   private static final int UNKNOWN_VIEW_ROWS = 40;  // rows assumed to be on screen before the tree is displayed
+   private static final String ROW_ATTRIBUTE = "row";
+   private static final String TOGGLE_STYLE = "virtualTree-toggle";
+
+   private final CompactTree tree;
+   private final CheckHandler handler;
+   private final ScrollPanel scrollPanel = new ScrollPanel();
+   private final HTML content = new HTML();
+   private final DivElement rows = Document.get().createDivElement();
+   private final boolean[] expanded;
+   private final boolean[] checked;
+
+   // the expanded nodes in display order, and their depth in the tree
+   private final int[] visibleNodes;
+   private final int[] visibleDepths;
+   private int visibleCount;
+
+   // the rows that currently have elements
+   private int firstRendered = -1;
+   private int lastRendered = -1;
+
+   // the view the rows were last checked against
+   private int lastFirstVisible = -1;
+   private int lastViewRows = -1;
+
+   public VirtualTree(CompactTree tree, CheckHandler handler)
+   {
+      this.tree = tree;
+      this.handler = handler;
+      expanded = new boolean[tree.size()];
+      checked = new boolean[tree.size()];
+      visibleNodes = new int[tree.size()];
+      visibleDepths = new int[tree.size()];
+      expanded[0] = true;
+
+      content.setStyleName("virtualTree-content");
+      content.getElement().appendChild(rows);
+      rows.setClassName("virtualTree-rows");
+      content.addClickHandler(new ClickHandler()
+      {
+         public void onClick(ClickEvent event)
+         {
+            handleClick(Element.as(event.getNativeEvent().getEventTarget()));
+         }
+      });
+
+      scrollPanel.setWidget(content);
+      scrollPanel.addScrollHandler(new ScrollHandler()
+      {
+         public void onScroll(ScrollEvent event)
+         {
+            render(false);
+         }
+      });
+      initWidget(scrollPanel);
+      setStyleName("virtualTree");
+
+      updateVisibleNodes();
+   }
+
+   @Override protected void onLoad()
+   {
+      // the size of the view is only known once the tree is displayed
+      render(true);
+   }
+
+   /**<!====== updateVisibleNodes ============================================>
+      Recomputes which nodes are shown (after something is expanded or
+      collapsed) and displays them.
+   <!=======================================================================>*/
+   private void updateVisibleNodes()
+   {
+      visibleCount = 0;
+      addVisibleNodes(0, 0);
+      content.setHeight(visibleCount * ROW_HEIGHT + "px");
+      render(true);
+   }
+
+   private void addVisibleNodes(int node, int depth)
+   {
+      visibleNodes[visibleCount] = node;
+      visibleDepths[visibleCount] = depth;
+      ++visibleCount;
+
+      if (expanded[node])
+      {
+         int childCount = tree.getChildCount(node);
+         for (int i = 0; i < childCount; i++)
+            addVisibleNodes(tree.getChild(node, i), depth + 1);
+      }
+   }
+
+   /**<!====== render ========================================================>
+      Creates the elements for the rows in (or near) the scrolled view.
+      Unless forced, nothing is done if the view still starts at the same row
+      with the same number of rows, or if its rows already have elements.
+   <!=======================================================================>*/
+   private void render(boolean force)
+   {
+      int scrollTop = scrollPanel.getScrollPosition();
+      int viewHeight = scrollPanel.getOffsetHeight();
+      int viewRows = viewHeight > 0 ? viewHeight / ROW_HEIGHT + 1 : UNKNOWN_VIEW_ROWS;
+      int firstVisible = scrollTop / ROW_HEIGHT;
+      if (!force && firstVisible == lastFirstVisible && viewRows == lastViewRows)
+         return;   // scrolled within the same row
+      lastFirstVisible = firstVisible;
+      lastViewRows = viewRows;
+      if (!force && firstVisible >= firstRendered && firstVisible + viewRows <= lastRendered)
+         return;
+
+      firstRendered = Math.max(0, firstVisible - EXTRA_ROWS);
+      lastRendered = Math.min(visibleCount, firstVisible + viewRows + EXTRA_ROWS);
+      rows.setInnerHTML("");
+      rows.getStyle().setPropertyPx("top", firstRendered * ROW_HEIGHT);
+      for (int row = firstRendered; row < lastRendered; row++)
+         rows.appendChild(createRow(row));
+   }
+
+   private Element createRow(int row)
+   {
+      Document document = Document.get();
+      int node = visibleNodes[row];
+      TreeEntry entry = tree.getEntry(node);
+
+      DivElement rowElement = document.createDivElement();
+      rowElement.setClassName("virtualTree-row");
+      rowElement.setAttribute(ROW_ATTRIBUTE, String.valueOf(row));
+      rowElement.getStyle().setPropertyPx("paddingLeft", visibleDepths[row] * INDENT);
+
+      SpanElement toggle = document.createSpanElement();
+      toggle.setClassName(TOGGLE_STYLE);
+      if (tree.getChildCount(node) > 0)
+         toggle.setInnerText(expanded[node] ? "-" : "+");
+      rowElement.appendChild(toggle);
+
+      if (entry.hasTrendSources())
+      {
+         // clicking the label also clicks the check box
+         LabelElement label = document.createLabelElement();
+         InputElement checkBox = document.createCheckInputElement();
+         checkBox.setChecked(checked[node]);
+         checkBox.setDefaultChecked(checked[node]);
+         label.appendChild(checkBox);
+         label.appendChild(document.createTextNode(entry.getName()));
+         rowElement.appendChild(label);
+      }
+      else
+      {
+         SpanElement name = document.createSpanElement();
+         name.setInnerText(entry.getName());
+         rowElement.appendChild(name);
+      }
+      return rowElement;
+   }
+
+   /**<!====== handleClick ===================================================>
+      Expands or collapses the node when its toggle is clicked, and checks or
+      unchecks it when its check box is clicked.
+   <!=======================================================================>*/
+   private void handleClick(Element target)
+   {
+      Element rowElement = target;
+      while (rowElement != null && !hasRow(rowElement))
+      {
+         if (rowElement == content.getElement())
+            return;
+         rowElement = rowElement.getParentElement();
+      }
+      if (rowElement == null)
+         return;
+
+      int node = visibleNodes[Integer.parseInt(rowElement.getAttribute(ROW_ATTRIBUTE))];
+      if (TOGGLE_STYLE.equals(target.getClassName()))
+      {
+         if (tree.getChildCount(node) > 0)
+         {
+            expanded[node] = !expanded[node];
+            updateVisibleNodes();
+         }
+      }
+      else if ("input".equalsIgnoreCase(target.getTagName()))
+      {
+         checked[node] = InputElement.as(target).isChecked();
+         handler.checkChanged(tree.getEntry(node), checked[node]);
+      }
+   }
+
+   private static boolean hasRow(Element element)
+   {
+      String row = element.getAttribute(ROW_ATTRIBUTE);
+      return row != null && row.length() > 0;
+   }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**<!=========================================================================>
+   Simple administration hook for the add-on's server side caches.  Only
+   operators in the role given by the "adminRole" init parameter (by default
+   "administrator") may use it.  A request with no "action" parameter reports
+   the current state as plain text.  The supported actions are:
+   <ul>
+     <li><code>invalidateTreeCache</code> - discards all cached static trees.</li>
+     <li><code>rebuildTrendIndex</code> - starts rebuilding the trend source
+         index in the background.</li>
+     <li><code>clearChartCache</code> - discards all cached chart images and data.</li>
+   </ul>
+<!==========================================================================>*/
+public class AdminServlet extends HttpServlet
+{
+   public static final String DEFAULT_ADMIN_ROLE = "administrator";
+
+   private String adminRole;
+
+   @Override public void init() throws ServletException
+   {
+      super.init();
+      adminRole = InitParameters.getString(getServletConfig(), "adminRole", DEFAULT_ADMIN_ROLE);
+   }
+
+   @Override
+   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+   {
+      doPost(request, response);
+   }
+
+   @Override
+   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+   {
+      if (!request.isUserInRole(adminRole))
+      {
+         response.sendError(HttpServletResponse.SC_FORBIDDEN);
+         return;
+      }
+
+      String action = request.getParameter("action");
+      if ("invalidateTreeCache".equals(action))
+      {
+         StaticTreeCache.getInstance().invalidate();
+         log("Static tree cache invalidated by " + request.getRemoteUser());
+      }
+      else if ("rebuildTrendIndex".equals(action))
+      {
+         // the rebuild walks the whole tree, so don't hold up the request for it
+         if (!TrendSourceIndex.getInstance().requestRebuild())
+         {
+            response.sendError(HttpServletResponse.SC_CONFLICT, "The trend source index is not enabled");
+            return;
+         }
+         log("Trend source index rebuild started by " + request.getRemoteUser());
+      }
+      else if ("clearChartCache".equals(action))
+      {
+         ChartCache.getInstance().clear();
+         log("Chart cache cleared by " + request.getRemoteUser());
+      }
+      else if (action != null)
+      {
+         response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown action: " + action);
+         return;
+      }
+
+      response.setHeader("Cache-Control", "no-cache");
+      response.setContentType("text/plain");
+      PrintWriter writer = response.getWriter();
+      writer.println("staticTreeCache.size=" + StaticTreeCache.getInstance().size());
+      writer.println("staticTreeCache.sharedBuilds=" + StaticTreeCache.getInstance().getSharedBuildCount());
+      writer.println("trendIndex.fresh=" + TrendSourceIndex.getInstance().isFresh());
+      ChartCache chartCache = ChartCache.getInstance();
+      writer.println("chartCache.size=" + chartCache.size());
+      writer.println("chartCache.bytes=" + chartCache.getTotalBytes());
+      writer.println("chartCache.hits=" + chartCache.getHits());
+      writer.println("chartCache.misses=" + chartCache.getMisses());
+      RenderPool renderPool = RenderPool.getInstance();
+      writer.println("renderPool.active=" + renderPool.getActiveCount());
+      writer.println("renderPool.queued=" + renderPool.getQueueDepth());
+      writer.println("renderPool.queueRejections=" + renderPool.getQueueRejections());
+      writer.println("renderPool.userRejections=" + renderPool.getUserRejections());
+      writer.println("renderPool.shared=" + GraphServlet.getSharedRenderCount());
+      writer.println("renderPool.superseded=" + GraphServlet.getSupersededCount());
+   }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**<!=========================================================================>
+   Cache of the PNG images (and JSON graph data) produced by {@link GraphServlet}
+   for days that are already over.  The trend data for completed days does
+   not change, so the encoded content can be reused for as long as memory
+   allows.
+   <p/>
+   Content is keyed by its type, operator, trend name, the ordered list of
+   equipment paths, the range of days and the image size.  The total size of
+   the cached content is bounded, and the least recently used content is
+   evicted first.  Each one carries a strong entity tag (a digest of its
+   bytes) so that clients can revalidate with <code>If-None-Match</code>.
+<!==========================================================================>*/
+public class ChartCache
+{
+   public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024L;
+
+   private static final ChartCache instance = new ChartCache();
+
+   private long maxBytes = DEFAULT_MAX_BYTES;
+   private long totalBytes;
+   private long hits;
+   private long misses;
+   private final LinkedHashMap<Key, CachedChart> charts = new LinkedHashMap<Key, CachedChart>(16, 0.75f, true);
+
+   public static ChartCache getInstance() { return instance; }
+
+   /**<!====== configure =====================================================>
+      Changes the memory bound (in bytes of content).  A size of zero (or
+      less) disables the cache.
+   <!=======================================================================>*/
+   public synchronized void configure(long maxBytes)
+   {
+      this.maxBytes = maxBytes;
+      clear();
+   }
+
+   public synchronized boolean isEnabled()
+   {
+      return maxBytes > 0;
+   }
+
+   /**<!====== get ===========================================================>
+      Returns the cached content for the given key, or null if there is none.
+   <!=======================================================================>*/
+   public synchronized CachedChart get(Key key)
+   {
+      CachedChart cached = charts.get(key);
+      if (cached == null)
+         ++misses;
+      else
+         ++hits;
+      return cached;
+   }
+
+   /**<!====== put ===========================================================>
+      Adds encoded content to the cache and returns the cached form (with its
+      entity tag).  The content is returned uncached if the cache is disabled
+      or it is larger than the whole cache.
+   <!=======================================================================>*/
+   public synchronized CachedChart put(Key key, byte[] content)
+   {
+      CachedChart chart = new CachedChart(content);
+      if (!isEnabled() || content.length > maxBytes)
+         return chart;
+
+      CachedChart old = charts.put(key, chart);
+      if (old != null)
+         totalBytes -= old.content.length;
+      totalBytes += content.length;
+
+      Iterator<CachedChart> eldest = charts.values().iterator();
+      while (totalBytes > maxBytes && eldest.hasNext())
+      {
+         totalBytes -= eldest.next().content.length;
+         eldest.remove();
+      }
+      return chart;
+   }
+
+   public synchronized void clear()
+   {
+      charts.clear();
+      totalBytes = 0;
+   }
+
+   public synchronized int size() { return charts.size(); }
+   public synchronized long getTotalBytes() { return totalBytes; }
+   public synchronized long getHits() { return hits; }
+   public synchronized long getMisses() { return misses; }
+
+   /**<!====== createETag ====================================================>
+      Creates a strong entity tag from the MD5 digest of the given bytes.
+   <!=======================================================================>*/
+   public static String createETag(byte[] data)
+   {
+      try
+      {
+         byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+         StringBuilder tag = new StringBuilder(2 + digest.length * 2);
+         tag.append('"');
+         for (byte b : digest)
+         {
+            tag.append(Character.forDigit((b >> 4) & 0xF, 16));
+            tag.append(Character.forDigit(b & 0xF, 16));
+         }
+         return tag.append('"').toString();
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         // every Java platform is required to support MD5
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**<!=========================================================================>
+      An encoded image (or graph data) and its entity tag.
+   <!==========================================================================>*/
+   public static class CachedChart
+   {
+      private final byte[] content;
+      private final String eTag;
+
+      private CachedChart(byte[] content)
+      {
+         this.content = content;
+         this.eTag = createETag(content);
+      }
+
+      public byte[] getContent() { return content; }
+      public String getETag() { return eTag; }
+   }
+
+   /**<!=========================================================================>
+      Identifies a rendered chart or its data.  The operator is part of the key
+      because operators may not be able to see the same equipment.  The size
+      is not used for data.
+   <!==========================================================================>*/
+   public static class Key
+   {
+      private final String contentType;
+      private final String operator;
+      private final String trend;
+      private final List<String> eqs;
+      private final long start;
+      private final long end;
+      private final int width;
+      private final int height;
+
+      public Key(String contentType, String operator, String trend, List<String> eqs, long start, long end, int width, int height)
+      {
+         this.contentType = contentType;
+         this.operator = operator;
+         this.trend = trend;
+         this.eqs = new ArrayList<String>(eqs);
+         this.start = start;
+         this.end = end;
+         this.width = width;
+         this.height = height;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (this == o) return true;
+         if (o == null || getClass() != o.getClass()) return false;
+
+         Key key = (Key) o;
+
+         if (start != key.start) return false;
+         if (end != key.end) return false;
+         if (width != key.width) return false;
+         if (height != key.height) return false;
+         if (!contentType.equals(key.contentType)) return false;
+         if (operator != null ? !operator.equals(key.operator) : key.operator != null) return false;
+         if (trend != null ? !trend.equals(key.trend) : key.trend != null) return false;
+         if (!eqs.equals(key.eqs)) return false;
+
+         return true;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int result = contentType.hashCode();
+         result = 31 * result + (operator != null ? operator.hashCode() : 0);
+         result = 31 * result + (trend != null ? trend.hashCode() : 0);
+         result = 31 * result + eqs.hashCode();
+         result = 31 * result + (int) (start ^ (start >>> 32));
+         result = 31 * result + (int) (end ^ (end >>> 32));
+         result = 31 * result + width;
+         result = 31 * result + height;
+         return result;
+      }
+   }
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**<!=========================================================================>
+   Disk backed store of the integrated value of a trend source over a day, so
+   that a day which is over only has to be integrated from the raw samples
+   once.  Values are keyed by the equipment's persistent lookup string, the
+   trend source reference name and the start and end of the day.
+   <p/>
+   The store is an append-only file of checksummed records, with every record
+   also kept in an in-memory index.  The file is read back when the store is
+   opened, so stored values survive restarts.  A record that fails its
+   checksum is skipped.  If a record's length is damaged, the records after
+   it can't be found, so the rest of the file is dropped (this is normally a
+   partial record at the end, from a crash while appending).
+   <p/>
+   Values for days that ended more than the configured maximum age ago are
+   dropped, so the store does not grow forever.  The file is compacted
+   (rewritten with just the values kept) when it is opened with records to
+   drop, and then about once a day while it is in use.  The compacted file is
+   written beside the old one, which is kept as a backup until the new one
+   is in place, so a crash while compacting leaves one of them to recover
+   from when the store is next opened.
+   <p/>
+   Trend samples are collected from the controllers some time after they are
+   recorded, so a day is only stored once it has been over for the configured
+   settle time.
+   <p/>
+   Lookups may be made from any thread.  Appends are serialized.
+<!==========================================================================>*/
+class DailyRollupStore
+{
+   public static final String FILE_NAME = "gwttree-rollups.dat";
+   public static final long DEFAULT_SETTLE_TIME = 6 * 60 * 60 * 1000L;
+   public static final long DEFAULT_MAX_AGE = 400 * 24 * 60 * 60 * 1000L;
+
+   private static final long COMPACTION_PERIOD = 24 * 60 * 60 * 1000L;
+
+   // a record is much smaller than this, so a larger length means a damaged file
+   private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+   private final File file;
+   private final long settleTime;
+   private final long maxAge;
+   private final ConcurrentMap<Key, Double> values = new ConcurrentHashMap<Key, Double>();
+   private final AtomicLong writeFailures = new AtomicLong();
+   private RandomAccessFile out;
+   private long lastCompaction;
+   private int skippedRecords;     // found damaged when loading
+   private int expiredRecords;     // found too old when loading
+   private long droppedBytes;      // at the end of the file that could not be read
+
+   /**<!====== DailyRollupStore ==============================================>
+      Opens (or creates) the store in the given directory and loads its
+      contents.
+      <!      Name          Description>
+      @param  directory     directory holding the store's file.
+      @param  settleTime    how long (in milliseconds) after the end of a day
+                            its values may still change.
+      @param  maxAge        how long (in milliseconds) after the end of a day
+                            its values are kept.
+   <!=======================================================================>*/
+   DailyRollupStore(File directory, long settleTime, long maxAge) throws IOException
+   {
+      this.file = new File(directory, FILE_NAME);
+      this.settleTime = settleTime;
+      this.maxAge = maxAge;
+      recover();
+      out = new RandomAccessFile(file, "rw");
+      long valid = load();
+      droppedBytes = out.length() - valid;
+      if (valid < out.length())
+         out.setLength(valid);
+      out.seek(valid);
+      lastCompaction = System.currentTimeMillis();
+      if (skippedRecords > 0 || expiredRecords > 0)
+         compactInUse();
+   }
+
+   /**<!====== get ===========================================================>
+      Returns the stored value, or null if it is not stored.
+   <!=======================================================================>*/
+   public Double get(String eqPath, String trendName, long start, long end)
+   {
+      return values.get(new Key(eqPath, trendName, start, end));
+   }
+
+   /**<!====== isStorable ====================================================>
+      Returns true if the data for a period ending at the given time will no
+      longer change, so its value can be stored.
+   <!=======================================================================>*/
+   public boolean isStorable(long end)
+   {
+      return end + settleTime <= System.currentTimeMillis();
+   }
+
+   /**<!====== put ===========================================================>
+      Stores a value and appends it to the file.  Values that are already
+      stored are not written again.  The store is only a cache, so a failure
+      to write the file is not passed on: the value is still kept in memory,
+      and the failure is counted (and the first one reported).
+   <!=======================================================================>*/
+   public void put(String eqPath, String trendName, long start, long end, double value)
+   {
+      Key key = new Key(eqPath, trendName, start, end);
+      if (values.putIfAbsent(key, value) != null)
+         return;
+
+      synchronized (this)
+      {
+         if (out == null)
+            return;
+         if (System.currentTimeMillis() - lastCompaction > COMPACTION_PERIOD && compactInUse())
+            return;   // the value was written by the compaction
+         if (out == null)
+            return;
+
+         byte[] data;
+         try
+         {
+            data = encode(key, value);
+         }
+         catch (IOException e)
+         {
+            return;   // writing to memory doesn't fail
+         }
+         long position = -1;
+         try
+         {
+            position = out.getFilePointer();
+            out.write(data);
+         }
+         catch (IOException e)
+         {
+            if (writeFailures.incrementAndGet() == 1)
+               e.printStackTrace();
+            try
+            {
+               // don't leave a partial record in front of the records that follow
+               if (position < 0)
+                  throw e;
+               out.setLength(position);
+               out.seek(position);
+            }
+            catch (IOException ignored)
+            {
+               // records appended after a partial one could not be read back, so stop writing
+               close();
+            }
+         }
+      }
+   }
+
+   public long getWriteFailures()
+   {
+      return writeFailures.get();
+   }
+
+   // Compacts the file while in use.  If that fails, the values are appended to the old
+   // file as before, and compacting is tried again a day later.
+   private boolean compactInUse()
+   {
+      try
+      {
+         compact();
+         return true;
+      }
+      catch (IOException e)
+      {
+         if (writeFailures.incrementAndGet() == 1)
+            e.printStackTrace();
+         lastCompaction = System.currentTimeMillis();
+         return false;
+      }
+   }
+
+   /**<!====== compact =======================================================>
+      Drops the values that are too old, and rewrites the file with just the
+      values that are left.  The new file is written beside the old one, then
+      the old one is renamed to a backup, the new one takes its place and the
+      backup is deleted.  If the new file can't be put in place, the old one
+      is opened again, so the store keeps appending to it (the store is only
+      closed if that fails too).
+   <!=======================================================================>*/
+   private synchronized void compact() throws IOException
+   {
+      long oldest = System.currentTimeMillis() - maxAge;
+      for (Iterator<Key> keys = values.keySet().iterator(); keys.hasNext();)
+      {
+         if (keys.next().end < oldest)
+            keys.remove();
+      }
+
+      File temp = getTempFile();
+      FileOutputStream tempFile = new FileOutputStream(temp);
+      boolean written = false;
+      try
+      {
+         OutputStream tempOut = new BufferedOutputStream(tempFile);
+         for (Map.Entry<Key, Double> entry : values.entrySet())
+            tempOut.write(encode(entry.getKey(), entry.getValue()));
+         tempOut.flush();
+         tempFile.getFD().sync();   // on disk before the old file is moved aside
+         written = true;
+      }
+      finally
+      {
+         tempFile.close();
+         if (!written)
+            temp.delete();
+      }
+
+      close();
+      File backup = getBackupFile();
+      backup.delete();
+      if (file.exists() && !file.renameTo(backup))
+      {
+         temp.delete();
+         reopen();
+         throw new IOException("Unable to rename " + file + " to " + backup);
+      }
+      if (!temp.renameTo(file))
+      {
+         if (!backup.renameTo(file))
+            throw new IOException("Unable to replace " + file + " with " + temp + " or restore it from " + backup);
+         temp.delete();
+         reopen();
+         throw new IOException("Unable to replace " + file + " with " + temp);
+      }
+      backup.delete();
+      reopen();
+      lastCompaction = System.currentTimeMillis();
+   }
+
+   private void reopen() throws IOException
+   {
+      out = new RandomAccessFile(file, "rw");
+      out.seek(out.length());
+   }
+
+   /**<!====== recover =======================================================>
+      Puts the file back in place if a crash while compacting left it missing,
+      and deletes what is left over from compacting.  The new file is complete
+      once the old one has been renamed to the backup, so it is preferred;
+      without a backup, the new file may only be partly written.
+   <!=======================================================================>*/
+   private void recover()
+   {
+      File temp = getTempFile();
+      File backup = getBackupFile();
+      if (!file.exists())
+      {
+         if (temp.exists() && backup.exists())
+            temp.renameTo(file);
+         else if (backup.exists())
+            backup.renameTo(file);
+      }
+      temp.delete();
+      backup.delete();
+   }
+
+   private File getTempFile()
+   {
+      return new File(file.getPath() + ".tmp");
+   }
+
+   private File getBackupFile()
+   {
+      return new File(file.getPath() + ".bak");
+   }
+
+   private static byte[] encode(Key key, double value) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + key.eqPath.length() + key.trendName.length());
+      DataOutputStream record = new DataOutputStream(bytes);
+      record.writeInt(0);  // length, filled in below
+      record.writeUTF(key.eqPath);
+      record.writeUTF(key.trendName);
+      record.writeLong(key.start);
+      record.writeLong(key.end);
+      record.writeDouble(value);
+      record.writeInt(0);  // checksum, filled in below
+      byte[] data = bytes.toByteArray();
+
+      int length = data.length - 8;
+      CRC32 crc = new CRC32();
+      crc.update(data, 4, length);
+      writeInt(data, 0, length);
+      writeInt(data, data.length - 4, (int) crc.getValue());
+      return data;
+   }
+
+   private static void writeInt(byte[] data, int offset, int value)
+   {
+      data[offset] = (byte) (value >>> 24);
+      data[offset + 1] = (byte) (value >>> 16);
+      data[offset + 2] = (byte) (value >>> 8);
+      data[offset + 3] = (byte) value;
+   }
+
+   public int size()
+   {
+      return values.size();
+   }
+
+   /**<!====== getSkippedRecords =============================================>
+      Returns the number of damaged records skipped when the store was opened.
+   <!=======================================================================>*/
+   public int getSkippedRecords()
+   {
+      return skippedRecords;
+   }
+
+   /**<!====== getDroppedBytes ===============================================>
+      Returns the number of bytes at the end of the file that were dropped
+      when the store was opened because no more records could be found.
+   <!=======================================================================>*/
+   public long getDroppedBytes()
+   {
+      return droppedBytes;
+   }
+
+   public synchronized void close()
+   {
+      if (out != null)
+      {
+         try
+         {
+            out.close();
+         }
+         catch (IOException e)
+         {
+            // nothing more can be done
+         }
+         out = null;
+      }
+   }
+
+   /**<!====== load ==========================================================>
+      Reads the records in the file into the index, counting those that are
+      damaged or too old, and returns the length of the file that could be
+      read.
+   <!=======================================================================>*/
+   private long load() throws IOException
+   {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try
+      {
+         long oldest = System.currentTimeMillis() - maxAge;
+         long remaining = file.length();
+         long valid = 0;
+         CRC32 crc = new CRC32();
+         while (remaining >= 8)
+         {
+            // without a believable length, there is no way to find the next record
+            int length = in.readInt();
+            if (length < 0 || length > MAX_RECORD_LENGTH || remaining < 8 + length)
+               break;
+
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            crc.reset();
+            crc.update(payload);
+            int checksum = in.readInt();
+            remaining -= 8 + length;
+            valid += 8 + length;
+            if (checksum != (int) crc.getValue())
+            {
+               ++skippedRecords;
+               continue;
+            }
+
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+            try
+            {
+               Key key = new Key(record.readUTF(), record.readUTF(), record.readLong(), record.readLong());
+               double value = record.readDouble();
+               if (key.end < oldest)
+                  ++expiredRecords;
+               else
+                  values.put(key, value);
+            }
+            catch (IOException e)
+            {
+               // not a record this version wrote (too short, or not valid modified UTF-8)
+               ++skippedRecords;
+            }
+         }
+         return valid;
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+
+   private static class Key
+   {
+      private final String eqPath;
+      private final String trendName;
+      private final long start;
+      private final long end;
+
+      private Key(String eqPath, String trendName, long start, long end)
+      {
+         this.eqPath = eqPath;
+         this.trendName = trendName;
+         this.start = start;
+         this.end = end;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (this == o) return true;
+         if (o == null || getClass() != o.getClass()) return false;
+
+         Key key = (Key) o;
+
+         if (start != key.start) return false;
+         if (end != key.end) return false;
+         if (!eqPath.equals(key.eqPath)) return false;
+         if (!trendName.equals(key.trendName)) return false;
+
+         return true;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int result = eqPath.hashCode();
+         result = 31 * result + trendName.hashCode();
+         result = 31 * result + (int) (start ^ (start >>> 32));
+         result = 31 * result + (int) (end ^ (end >>> 32));
+         return result;
+      }
+   }
+}
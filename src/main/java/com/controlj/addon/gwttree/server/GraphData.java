@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**<!=========================================================================>
+   The data for one graph: a value for each day for each equipment that could
+   be read, in the order the equipment were requested, and a description of
+   each equipment that could not be read.
+<!==========================================================================>*/
+class GraphData
+{
+   private final List<Series> series = new ArrayList<Series>();
+   private final List<String> failures = new ArrayList<String>();
+
+   public void addSeries(String name, double[] values)
+   {
+      series.add(new Series(name, values));
+   }
+
+   public void addFailure(String path, Exception e)
+   {
+      failures.add(path + ": " + e);
+   }
+
+   public List<Series> getSeries() { return Collections.unmodifiableList(series); }
+   public List<String> getFailures() { return Collections.unmodifiableList(failures); }
+
+   public static class Series
+   {
+      private final String name;
+      private final double[] values;
+
+      private Series(String name, double[] values)
+      {
+         this.name = name;
+         this.values = values;
+      }
+
+      public String getName() { return name; }
+      public int getDayCount() { return values.length; }
+      public double getValue(int day) { return values[day]; }
+   }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import com.controlj.green.addonsupport.access.*;
+import com.controlj.green.addonsupport.access.aspect.AnalogTrendSource;
+import com.controlj.green.addonsupport.access.trend.TrendAnalogSample;
+import com.controlj.green.addonsupport.access.trend.TrendData;
+import com.controlj.green.addonsupport.access.trend.TrendRangeFactory;
+import com.controlj.green.addonsupport.access.util.Acceptors;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**<!=========================================================================>
+   Loads the data for a graph: the display name of each equipment and the
+   integrated value of its trend source for each day.  When a request allows it, the
+   equipment are split into groups that are fetched and integrated
+   concurrently (each group in its own read action) on a pool of threads
+   shared by all requests.  The number of groups is limited so that one large
+   graph can't take over the whole pool.
+   <p/>
+   If a {@link DailyRollupStore} is given, the integrated values of days that
+   are over are read from (and written to) the store instead of being
+   integrated again.
+<!==========================================================================>*/
+class GraphDataLoader
+{
+   public static final int DEFAULT_THREADS = 8;
+   public static final int DEFAULT_MAX_PARALLELISM = 4;
+
+   private final ExecutorService executor;
+   private final int maxParallelism;
+   private final DailyRollupStore rollups;
+
+   GraphDataLoader(int threads, int maxParallelism, DailyRollupStore rollups)
+   {
+      this.maxParallelism = Math.max(1, maxParallelism);
+      this.rollups = rollups;
+      final AtomicInteger threadNumber = new AtomicInteger();
+      executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory()
+      {
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, "GwtTree-Integration-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   public void shutdown()
+   {
+      executor.shutdownNow();
+   }
+
+   /**<!====== load ==========================================================>
+      Loads the graph data.  The series in the result are in the same order as
+      the given equipment, whatever order they were fetched in.
+      <!      Name          Description>
+      @param  connection    the operator's connection.
+      @param  trendName     reference name of the trend source in each equipment.
+      @param  eqs           lookup strings of the equipment.
+      @param  days          start of each day to total demand for, followed
+                            by the end of the last day.
+      @param  parallelism   the most groups the request wants fetched at once
+                            (further limited by the configured maximum).
+   <!=======================================================================>*/
+   public GraphData load(SystemConnection connection, String trendName, List<String> eqs, Date[] days, int parallelism) throws Exception
+   {
+      int groups = Math.min(eqs.size(), Math.min(parallelism, maxParallelism));
+      EquipmentResult[] results = new EquipmentResult[eqs.size()];
+
+      if (groups <= 1)
+      {
+         new GroupLoad(connection, rollups, trendName, eqs, days, 0, 1, results).call();
+      }
+      else
+      {
+         // equipment i goes in group (i % groups), and the groups are fetched concurrently
+         List<Future<Void>> futures = new ArrayList<Future<Void>>(groups);
+         for (int group = 0; group < groups; group++)
+            futures.add(executor.submit(new GroupLoad(connection, rollups, trendName, eqs, days, group, groups, results)));
+         try
+         {
+            for (Future<Void> future : futures)
+               future.get();
+         }
+         catch (ExecutionException e)
+         {
+            for (Future<Void> future : futures)
+               future.cancel(true);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+               throw (Exception) cause;
+            throw e;
+         }
+      }
+
+      GraphData data = new GraphData();
+      for (int i = 0; i < results.length; i++)
+      {
+         if (results[i].failure != null)
+            data.addFailure(eqs.get(i), results[i].failure);
+         else
+            data.addSeries(results[i].displayName, results[i].values);
+      }
+      return data;
+   }
+
+   private static class EquipmentResult
+   {
+      private String displayName;
+      private double[] values;
+      private Exception failure;
+   }
+
+   /**<!=========================================================================>
+      Loads every groups'th equipment (starting at first) in a single read
+      action with field access, storing the results by position.
+   <!==========================================================================>*/
+   private static class GroupLoad implements Callable<Void>
+   {
+      private final SystemConnection connection;
+      private final DailyRollupStore rollups;
+      private final String trendName;
+      private final List<String> eqs;
+      private final Date[] days;
+      private final int first;
+      private final int groups;
+      private final EquipmentResult[] results;
+
+      private GroupLoad(SystemConnection connection, DailyRollupStore rollups, String trendName, List<String> eqs,
+                        Date[] days, int first, int groups, EquipmentResult[] results)
+      {
+         this.connection = connection;
+         this.rollups = rollups;
+         this.trendName = trendName;
+         this.eqs = eqs;
+         this.days = days;
+         this.first = first;
+         this.groups = groups;
+         this.results = results;
+      }
+
+      public Void call() throws Exception
+      {
+         return connection.runReadAction(FieldAccessFactory.newFieldAccess(), new ReadActionResult<Void>()
+         {
+            public Void execute(SystemAccess access) throws Exception
+            {
+               for (int i = first; i < eqs.size(); i += groups)
+               {
+                  EquipmentResult result = new EquipmentResult();
+                  try
+                  {
+                     Location eq = access.getTree(SystemTree.Geographic).resolve(eqs.get(i));
+                     result.displayName = eq.getDisplayName();
+                     // lookup strings from the tree may change over a restart, so the store uses the persistent one
+                     result.values = totalDemand(rollups, eq.getPersistentLookupString(true), eq, trendName, days);
+                  }
+                  catch (Exception e)
+                  {
+                     result.failure = e;
+                  }
+                  results[i] = result;
+               }
+               return null;
+            }
+         });
+      }
+   }
+
+   /**<!====== totalDemand ===================================================>
+      Calculates the consumption (in kwH) for each day from a specified trend
+      source of demand (kW).  Must be called inside a read action with field
+      access.  Days whose value has been stored in the rollup store are taken
+      from it.  The trend data for the other days is fetched once and split
+      into days while it is integrated, and days that will no longer change
+      are stored.
+      <!      Name                 Description>
+      @param  rollups              Store of previously integrated values (may be null).
+      @param  eqPath               Persistent lookup string of the equipment.
+      @param  eq                   Equipment containing the trend source.
+      @param  trendName            Reference name of the trend source.
+      @param  days                 Start of each day, followed by the end of the last day.
+      @return total consumption in kWH for each day.
+   <!=======================================================================>*/
+   private static double[] totalDemand(DailyRollupStore rollups, String eqPath, Location eq, String trendName, Date[] days) throws Exception
+   {
+      Collection<AnalogTrendSource> trendSourceCollection = eq.find(AnalogTrendSource.class,
+                                                                    Acceptors.enabledTrendSourceByName(trendName));
+
+      // the trend source is looked up first so that the operator must still be able to see it
+      AnalogTrendSource source = trendSourceCollection.iterator().next();
+
+      int dayCount = days.length - 1;
+      double[] totals = new double[dayCount];
+      int first = dayCount;
+      int last = -1;
+      for (int day = 0; day < dayCount; day++)
+      {
+         Double stored = rollups == null ? null : rollups.get(eqPath, trendName, days[day].getTime(), days[day + 1].getTime());
+         if (stored != null)
+            totals[day] = stored;
+         else
+         {
+            first = Math.min(first, day);
+            last = day;
+         }
+      }
+      if (last < 0)
+         return totals;
+
+      long[] boundaries = new long[last - first + 2];
+      for (int i = 0; i < boundaries.length; i++)
+         boundaries[i] = days[first + i].getTime();
+
+      TrendData<TrendAnalogSample> data = source.getTrendData(TrendRangeFactory.byDateRange(days[first], days[last + 1]));
+      double[] integrated = data.process(new TrendIntegrator(boundaries)).getValues();
+      for (int day = first; day <= last; day++)
+      {
+         totals[day] = integrated[day - first];
+         if (rollups != null && rollups.isStorable(days[day + 1].getTime()))
+            rollups.put(eqPath, trendName, days[day].getTime(), days[day + 1].getTime(), totals[day]);
+      }
+      return totals;
+   }
+}
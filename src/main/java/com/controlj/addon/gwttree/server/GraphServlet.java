@@ -24,32 +24,175 @@ package com.controlj.addon.gwttree.server;
 
 import com.controlj.green.addonsupport.InvalidConnectionRequestException;
 import com.controlj.green.addonsupport.access.*;
-import com.controlj.green.addonsupport.access.aspect.AnalogTrendSource;
-import com.controlj.green.addonsupport.access.trend.TrendAnalogSample;
-import com.controlj.green.addonsupport.access.trend.TrendData;
-import com.controlj.green.addonsupport.access.trend.TrendProcessor;
-import com.controlj.green.addonsupport.access.trend.TrendRangeFactory;
-import com.controlj.green.addonsupport.access.util.Acceptors;
 import org.jfree.chart.*;
-import org.jfree.chart.plot.CategoryPlot;
-import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.data.category.DefaultCategoryDataset;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.awt.*;
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 /**<!=========================================================================>
-   This class uses JFreeChart to create and serve up the desired chart.
+   This class uses JFreeChart to create and serve up the desired chart.  When
+   requested through the data path (/servlet/graphdata), it serves the chart's
+   data as JSON instead so that the browser can draw the chart itself:
+   <pre>
+   {"period":"24 Hour Period","categories":["10/17/26"],
+    "series":[{"name":"AHU 1","values":[123.456]}],"failures":0}
+   </pre>
 <!==========================================================================>*/
 public class GraphServlet extends HttpServlet
 {
+   private static final int DEFAULT_WIDTH = 600;
+   private static final int DEFAULT_HEIGHT = 400;
+   private static final int MAX_SIZE = 2000;
+   private static final int MAX_DAYS = 62;
+   private static final String DATA_PATH = "/servlet/graphdata";
+   private static final String PNG_TYPE = "image/png";
+   private static final String JSON_TYPE = "application/json; charset=UTF-8";
+
+   // how long (in seconds) browsers may reuse the chart of a completed day
+   private static final int COMPLETED_DAY_MAX_AGE = 24 * 60 * 60;
+
+   private GraphDataLoader loader;
+   private GraphTheme theme;
+   private boolean coalesceAcrossOperators;
+   private static final SingleFlight<RenderKey, Rendering> renderings = new SingleFlight<RenderKey, Rendering>();
+   private static final LatestRequests latestRequests = new LatestRequests();
+   private DailyRollupStore rollups;
+
+   /**<!====== init ==========================================================>
+      Creates the {@link GraphDataLoader} and configures the {@link ChartCache}.
+      The (optional) init parameter "integrationThreads" sets the number of
+      threads shared by all requests for fetching trend data, and
+      "maxRequestParallelism" the most of those threads one request may use.
+      "chartCacheSize" limits the memory (in kilobytes) used for rendered
+      charts of completed days.
+      <p/>
+      Unless "rollupStoreEnabled" is false, the integrated values of past days
+      are kept in a {@link DailyRollupStore} in the "rollupStoreDirectory"
+      (by default the servlet context's temporary directory).
+      "rollupSettleTime" is how long (in seconds) after the end of a day its
+      trend data may still change.
+      "rollupMaxAge" is how long (in days) after the end of a day its value
+      is kept.
+      <p/>
+      The look of the charts is set up once here, see {@link GraphTheme#create}
+      for its parameters.
+      <p/>
+      Loading and rendering are limited by the {@link RenderPool}: "renderThreads"
+      requests are worked on at once, "renderQueueDepth" more may wait, and
+      each operator may have "renderPerUserLimit" requests waiting or being
+      worked on.  Other requests get a 503 asking them to retry after
+      "renderRetryAfter" seconds.
+      <p/>
+      Identical requests that arrive while one is being worked on share its
+      result.  Only requests from the same operator are shared unless
+      "coalesceAcrossOperators" is true (which is only safe when all
+      operators can see the same equipment).
+      <p/>
+      If "warmUp" is true, a throwaway chart is rendered here so that the
+      first real graph does not wait for fonts and classes to load.
+   <!=======================================================================>*/
+   @Override public void init() throws ServletException
+   {
+      super.init();
+      int threads = InitParameters.getInt(getServletConfig(), "integrationThreads", GraphDataLoader.DEFAULT_THREADS);
+      int maxParallelism = InitParameters.getInt(getServletConfig(), "maxRequestParallelism", GraphDataLoader.DEFAULT_MAX_PARALLELISM);
+      theme = GraphTheme.create(getServletConfig());
+      coalesceAcrossOperators = InitParameters.getBoolean(getServletConfig(), "coalesceAcrossOperators", false);
+      RenderPool.getInstance().configure(InitParameters.getInt(getServletConfig(), "renderThreads", RenderPool.DEFAULT_THREADS),
+                                         InitParameters.getInt(getServletConfig(), "renderQueueDepth", RenderPool.DEFAULT_QUEUE_DEPTH),
+                                         InitParameters.getInt(getServletConfig(), "renderPerUserLimit", RenderPool.DEFAULT_PER_USER_LIMIT),
+                                         InitParameters.getInt(getServletConfig(), "renderRetryAfter", RenderPool.DEFAULT_RETRY_AFTER));
+      rollups = openRollupStore();
+      loader = new GraphDataLoader(threads, maxParallelism, rollups);
+
+      long cacheSize = InitParameters.getLong(getServletConfig(), "chartCacheSize", ChartCache.DEFAULT_MAX_BYTES / 1024);
+      ChartCache.getInstance().configure(cacheSize * 1024);
+
+      if (InitParameters.getBoolean(getServletConfig(), "warmUp", false))
+         warmUp();
+   }
+
+   /**<!====== warmUp ========================================================>
+      Renders a chart with made up data and encodes it, which initializes
+      headless AWT, loads the chart font and the JFreeChart classes, and gets
+      the PNG encoder going.  Failures are only logged.
+   <!=======================================================================>*/
+   private void warmUp()
+   {
+      try
+      {
+         long start = System.currentTimeMillis();
+         DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+         dataset.addValue(1.0, "Warm-up", "1");
+         dataset.addValue(2.0, "Warm-up", "2");
+         JFreeChart chart = theme.createChart("Integration Over Time", "2 Day Period", dataset);
+         chart.addSubtitle(theme.createWarning("Warm-up"));
+         ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+         ChartUtilities.writeChartAsPNG(out, chart, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+         log("Chart warm-up took " + (System.currentTimeMillis() - start) + " ms");
+      }
+      catch (Exception e)
+      {
+         log("Chart warm-up failed", e);
+      }
+   }
+
+   @Override public void destroy()
+   {
+      RenderPool.getInstance().shutdown();
+      loader.shutdown();
+      if (rollups != null)
+         rollups.close();
+      ChartCache.getInstance().clear();
+      super.destroy();
+   }
+
+   private DailyRollupStore openRollupStore()
+   {
+      if (!InitParameters.getBoolean(getServletConfig(), "rollupStoreEnabled", true))
+         return null;
+
+      String directoryName = InitParameters.getString(getServletConfig(), "rollupStoreDirectory", null);
+      File directory = directoryName != null ? new File(directoryName)
+                                             : (File) getServletContext().getAttribute("javax.servlet.context.tempdir");
+      if (directory == null)
+      {
+         log("No directory for the rollup store, past days will always be integrated");
+         return null;
+      }
+
+      long settleTime = InitParameters.getLong(getServletConfig(), "rollupSettleTime", DailyRollupStore.DEFAULT_SETTLE_TIME / 1000);
+      long maxAge = InitParameters.getLong(getServletConfig(), "rollupMaxAge", DailyRollupStore.DEFAULT_MAX_AGE / (24 * 60 * 60 * 1000L));
+      try
+      {
+         directory.mkdirs();
+         DailyRollupStore store = new DailyRollupStore(directory, settleTime * 1000, maxAge * 24 * 60 * 60 * 1000L);
+         log("Loaded " + store.size() + " daily rollups from " + directory);
+         if (store.getSkippedRecords() > 0)
+            log("Skipped " + store.getSkippedRecords() + " damaged daily rollups in " + directory);
+         if (store.getDroppedBytes() > 0)
+            log("Dropped " + store.getDroppedBytes() + " unreadable bytes at the end of the daily rollups in " + directory);
+         return store;
+      }
+      catch (IOException e)
+      {
+         log("Unable to open the rollup store in " + directory + ", past days will always be integrated", e);
+         return null;
+      }
+   }
+
    @Override
    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
    {
@@ -61,258 +204,514 @@ public class GraphServlet extends HttpServlet
       will contain a date parameter with the date to graph.  The list of
       trend sources is obtained from the TreeService (synchronized via GWT RPC
       mechanism and not passed on every request).
+      <p/>
+      A range of days may be graphed instead, with one category per day.  The
+      range is given either by "start" and "end" (times within the first and
+      last days), or by "days", the number of days ending with the date.
+      <p/>
+      The data for days that are already over will not change, so those charts
+      (and their JSON data) are served from the {@link ChartCache} with an
+      entity tag and may be cached by the browser.  Charts for today are always
+      rendered afresh.
+      <p/>
+      A request for data that has to be rendered is dropped (and answered with
+      no content) if a different request for the same trend arrives from the
+      same page (given by the "view" parameter) of the same session before it
+      is done, since only the newest one is shown.  Requests without a view,
+      and chart images (which an image element can't tell apart from a failed
+      load when answered with no content), are never dropped.
+      <p/>
+      A request with a date, size or parallelism that is not a number is
+      answered with 400 (Bad Request).
    <!=======================================================================>*/
    @Override
    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
    {
+      GraphParameters params;
+      try
+      {
+         params = extractParameters(request);
+      }
+      catch (NumberFormatException e)
+      {
+         response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid graph parameter: " + e.getMessage());
+         return;
+      }
       SystemConnection connection = createConnection(request);
-      GraphParameters params = extractParameters(request);
-      JFreeChart chart = createChart(connection, params);
 
-      // generate response
-      response.setHeader("Cache-Control", "no-cache");
-      response.setContentType("image/png");
       try
       {
-         // Generate the graph from the dataset and write out as a PNG
-         ChartUtilities.writeChartAsPNG(response.getOutputStream(), chart, 600, 400);
+         if (DATA_PATH.equals(request.getServletPath()))
+            writeData(request, response, connection, params);
+         else
+            writeChart(request, response, connection, params);
       }
-      catch (IOException e)
+      catch (RenderPool.RejectedException e)
+      {
+         // overloaded, so ask the client to come back later rather than making it wait
+         response.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+         response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+      }
+      catch (LatestRequests.SupersededException e)
       {
-         //ignore errors writing out image
+         response.setStatus(HttpServletResponse.SC_NO_CONTENT);
       }
    }
 
-   private GraphParameters extractParameters(HttpServletRequest request)
+   private void writeChart(HttpServletRequest request, HttpServletResponse response, SystemConnection connection,
+                           GraphParameters params) throws ServletException, IOException, RenderPool.RejectedException,
+                                                          LatestRequests.SupersededException
    {
-      Date date = new Date(Long.parseLong(request.getParameter("date")));
-      String trend = request.getParameter("trend");
-      List<String> eqs = new ArrayList<String>();
-      int eqNum = 0;
-      for (;;)
+      Date start = params.getStart();
+      Date end = params.getEnd();
+
+      ChartCache cache = ChartCache.getInstance();
+      if (end.getTime() > System.currentTimeMillis() || !cache.isEnabled())
       {
-         String eqName = request.getParameter("eq"+eqNum);
-         if (eqName == null)
-            break;
-         eqs.add(eqName);
-         ++eqNum;
+         writeUncached(response, PNG_TYPE, render(request, connection, params, true).content);
+         return;
       }
 
-      return new GraphParameters(date, trend, eqs);
+      ChartCache.Key key = new ChartCache.Key(PNG_TYPE, request.getRemoteUser(), params.getTrend(), params.getEqs(),
+                                              start.getTime(), end.getTime(), params.getWidth(), params.getHeight());
+      ChartCache.CachedChart chart = cache.get(key);
+      if (chart == null)
+      {
+         Rendering rendering = render(request, connection, params, true);
+         if (!rendering.data.getFailures().isEmpty())
+         {
+            // the failures may be transient, so don't keep this chart around
+            writeUncached(response, PNG_TYPE, rendering.content);
+            return;
+         }
+         chart = cache.put(key, rendering.content);
+      }
+      writeCacheable(request, response, PNG_TYPE, chart.getContent(), chart.getETag(), end.getTime());
    }
 
-   private SystemConnection createConnection(HttpServletRequest request) throws ServletException
+   /**<!====== getSharedRenderCount ==========================================>
+      Returns how many requests have shared a rendering with an identical
+      request instead of rendering again.
+   <!=======================================================================>*/
+   static long getSharedRenderCount()
    {
+      return renderings.getSharedCount();
+   }
+
+   static long getSupersededCount()
+   {
+      return latestRequests.getSupersededCount();
+   }
+
+   /**<!====== render ========================================================>
+      Loads the data and renders it (as a PNG chart or as JSON) on the
+      {@link RenderPool}, waiting for the result.  If the same rendering is
+      already in progress, waits for that one instead.
+      @throws LatestRequests.SupersededException if a newer request for the
+              same view arrived in the meantime.
+   <!=======================================================================>*/
+   private Rendering render(HttpServletRequest request, SystemConnection connection, GraphParameters params,
+                            boolean chart) throws ServletException, IOException, RenderPool.RejectedException,
+                                                  LatestRequests.SupersededException
+   {
+      String user = request.getRemoteUser();
+      RenderKey key = new RenderKey(chart, coalesceAcrossOperators ? null : user, params);
+      LatestRequests.Token token = latestRequests.register(chart ? null : getView(request, params), key);
       try
       {
-         return DirectAccess.getDirectAccess().getUserSystemConnection(request);
+         try
+         {
+            return renderOnPool(user, key, token, connection, true);
+         }
+         catch (LatestRequests.SupersededException e)
+         {
+            if (token.isSuperseded())
+               throw e;
+
+            // the rendering was shared with another view's request that was superseded, so render this one alone
+            return renderOnPool(user, key, token, connection, false);
+         }
       }
-      catch (InvalidConnectionRequestException e)
+      finally
       {
-         throw new ServletException(e);
+         latestRequests.done(token);
       }
    }
 
-   private JFreeChart createChart(SystemConnection connection, GraphParameters params) throws ServletException, IOException
+   /**<!====== getView =======================================================>
+      Returns what a data request is shown in, for replacing older requests
+      with newer ones: the page (within the session) and the trend.  Returns
+      null if the client didn't say.
+   <!=======================================================================>*/
+   private static String getView(HttpServletRequest request, GraphParameters params)
    {
-      DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+      HttpSession session = request.getSession(false);
+      String view = request.getParameter("view");
+      if (session == null || view == null)
+         return null;
+      return session.getId() + '/' + view + '/' + params.getTrend();
+   }
 
-      for (String path : params.getEqs())
+   /**<!====== renderOnPool ==================================================>
+      Renders on the {@link RenderPool}, sharing the rendering with identical
+      requests if asked to.
+   <!=======================================================================>*/
+   private Rendering renderOnPool(final String user, final RenderKey key, final LatestRequests.Token token,
+                                  final SystemConnection connection, boolean share) throws ServletException, IOException,
+                                                                                           RenderPool.RejectedException,
+                                                                                           LatestRequests.SupersededException
+   {
+      final GraphParameters params = key.params;
+      final Callable<Rendering> work = new Callable<Rendering>()
       {
-         try
+         public Rendering call() throws Exception
          {
-            // Find the name to title this series
-            String displayName = getDisplayName(connection, path);
-
-            // Calculate the starting and ending Dates
-            Date start = getMidnight(params.getDate());
-            Calendar endCal = new GregorianCalendar();
-            endCal.setTime(start);
-            endCal.add(Calendar.DATE, 1);
-            Date end = endCal.getTime();
+            token.check();   // may have been superseded while queued
+            GraphData data = loadData(connection, params);
+            token.check();
+            byte[] content = key.chart ? renderChart(params, data) : toJson(params, data).getBytes("UTF-8");
+            return new Rendering(data, content);
+         }
+      };
 
-            // Total up the demand from the specified trend source
-            float value = totalDemand(connection, path, params.getTrend(), start, end);
+      try
+      {
+         if (!share)
+            return RenderPool.getInstance().execute(user, work);
 
-            // Add this value as a new data series in the graph's dataset
-            dataset.addValue(value, displayName, params.getDateString());
-         }
-         catch (Exception e)
+         return renderings.execute(key, new Callable<Rendering>()
          {
-            throw new ServletException(e);
-         }
+            public Rendering call() throws Exception
+            {
+               return RenderPool.getInstance().execute(user, work);
+            }
+         });
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new ServletException(e);
+      }
+      catch (ExecutionException e)
+      {
+         // the render pool's exception may be wrapped in the single flight's
+         Throwable cause = e.getCause();
+         while (cause instanceof ExecutionException && cause.getCause() != null)
+            cause = cause.getCause();
+         if (cause instanceof RenderPool.RejectedException)
+            throw (RenderPool.RejectedException) cause;
+         if (cause instanceof LatestRequests.SupersededException)
+            throw (LatestRequests.SupersededException) cause;
+         if (cause instanceof ServletException)
+            throw (ServletException) cause;
+         if (cause instanceof IOException)
+            throw (IOException) cause;
+         if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+         throw new ServletException(cause);
       }
-
-      return getChart(dataset);
    }
 
-   /**<!====== getChart ======================================================>
-      Generates the chart.  Note that most of these options are not required
-      for a simple chart, but we wanted to try to get a particular look that
-      matched another charting package, so we went to some trouble to set
-      a lot of non-standard options.  In particular, the OpaqueBarRenderer3D
-      is a non-standard renderer that gives much better looking 3D bars.
+   /**<!====== writeData =====================================================>
+      Writes the graph data as JSON.  Like the charts, the data for days that
+      are over is kept in the {@link ChartCache} and may be cached by the
+      browser, so revalidating it does not load the data again.
    <!=======================================================================>*/
-   private static JFreeChart getChart(DefaultCategoryDataset dataset)
-   {
-      JFreeChart chart = ChartFactory.createBarChart3D("Integration Over Time", "24 Hour Period", "", dataset, PlotOrientation.VERTICAL, true, true, false);
-      chart.setBackgroundPaint(Color.black);
-      chart.getTitle().setPaint(Color.white);
-      chart.getTitle().setFont(new Font("Verdana", Font.BOLD, 20));
-      chart.setAntiAlias(true);
-      chart.setTextAntiAlias(true);
-      CategoryPlot plot = (CategoryPlot) chart.getPlot();
-      plot.setForegroundAlpha(1);
-      OpaqueBarRenderer3D renderer = new OpaqueBarRenderer3D();
-      renderer.setItemMargin(0.1);
-      plot.setRenderer(renderer);
-
-      renderer.setSeriesPaint(0, new Color(116,225,118));
-      renderer.setSeriesPaint(1, new Color(245,107,107));
-      renderer.setSeriesPaint(2, new Color(250,187,107));
-      renderer.setSeriesPaint(3, new Color(72,72,238));
-      renderer.setSeriesPaint(4, new Color(184,32,157));
-      renderer.setDrawBarOutline(false);
-
-      Font small = new Font("Verdana", Font.PLAIN, 12);
-      Font big = new Font("Verdana", Font.BOLD, 14);
-
-      renderer.setItemLabelPaint(Color.white);
-      plot.getDomainAxis().setTickLabelPaint(Color.white);
-      plot.getDomainAxis().setTickLabelFont(small);
-      plot.getDomainAxis().setLabelPaint(Color.white);
-      plot.getDomainAxis().setLabelFont(big);
-      plot.getDomainAxis().setCategoryMargin(0.2);
-
-      plot.getRangeAxis().setTickLabelPaint(Color.white);
-      plot.getRangeAxis().setTickLabelFont(small);
-      plot.getRangeAxis().setLabelPaint(Color.white);
-      plot.getRangeAxis().setLabelFont(big);
-      plot.setBackgroundPaint(Color.black);
-
-      chart.getLegend().setBackgroundPaint(Color.black);
-      chart.getLegend().setItemPaint(Color.white);
-      chart.getLegend().setItemFont(big);
+   private void writeData(HttpServletRequest request, HttpServletResponse response, SystemConnection connection,
+                          GraphParameters params) throws ServletException, IOException, RenderPool.RejectedException,
+                                                         LatestRequests.SupersededException
+   {
+      Date end = params.getEnd();
+      if (end.getTime() > System.currentTimeMillis())
+      {
+         writeUncached(response, JSON_TYPE, render(request, connection, params, false).content);
+         return;
+      }
 
-      return chart;
+      ChartCache cache = ChartCache.getInstance();
+      ChartCache.Key key = new ChartCache.Key(JSON_TYPE, request.getRemoteUser(), params.getTrend(), params.getEqs(),
+                                              params.getStart().getTime(), end.getTime(), 0, 0);
+      ChartCache.CachedChart data = cache.isEnabled() ? cache.get(key) : null;
+      if (data == null)
+      {
+         Rendering rendering = render(request, connection, params, false);
+         if (!rendering.data.getFailures().isEmpty())
+         {
+            // the failures may be transient, so don't keep this data around
+            writeUncached(response, JSON_TYPE, rendering.content);
+            return;
+         }
+         data = cache.put(key, rendering.content);   // still tagged when the cache is disabled
+      }
+      writeCacheable(request, response, JSON_TYPE, data.getContent(), data.getETag(), end.getTime());
    }
 
-   private String getDisplayName(SystemConnection connection, final String path) throws SystemException, ActionExecutionException
+   private String toJson(GraphParameters params, GraphData data)
    {
-      return connection.runReadAction(new ReadActionResult<String>()
+      StringBuilder json = new StringBuilder(256);
+      json.append("{\"period\":");
+      appendString(json, getPeriod(params));
+      json.append(",\"categories\":[");
+      for (int day = 0; day < params.getDayCount(); day++)
       {
-         public String execute(SystemAccess access) throws Exception
+         if (day > 0)
+            json.append(',');
+         appendString(json, params.getDayString(day));
+      }
+      json.append("],\"series\":[");
+      int index = 0;
+      for (GraphData.Series series : data.getSeries())
+      {
+         if (index > 0)
+            json.append(',');
+         json.append("{\"name\":");
+         appendString(json, series.getName());
+         // the same color as the series has in charts rendered here
+         json.append(",\"color\":");
+         appendString(json, String.format("#%06x", theme.getSeriesColor(index++).getRGB() & 0xffffff));
+         json.append(",\"values\":[");
+         for (int day = 0; day < series.getDayCount(); day++)
          {
-            return access.getTree(SystemTree.Geographic).resolve(path).getDisplayName();
+            if (day > 0)
+               json.append(',');
+            appendNumber(json, series.getValue(day));
          }
-      });
-   }
-
-   /**<!====== totalDemand ===================================================>
-      Calculates the consumption (in kwH) from a specified trend source of
-      demand (kW) over a specified time range.
-      <!      Name                 Description>
-      @param  connection           SystemConnection to use to get trend data.
-      @param  path                 LookupString for trend source.
-      @param  trendName            .
-      @param  start                Starting Date for totaling demand.
-      @param  end                  Ending Date for totaling demand.
-      @return total consumption in kWH.
+         json.append("]}");
+      }
+      json.append("],\"failures\":").append(data.getFailures().size()).append('}');
+      return json.toString();
+   }
+
+   private static void appendString(StringBuilder json, String value)
+   {
+      json.append('"');
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\')
+            json.append('\\').append(c);
+         else if (c < 0x20)
+            json.append(String.format("\\u%04x", (int) c));
+         else
+            json.append(c);
+      }
+      json.append('"');
+   }
+
+   private static void appendNumber(StringBuilder json, double value)
+   {
+      if (Double.isNaN(value) || Double.isInfinite(value))
+         json.append("null");
+      else
+         json.append(Math.round(value * 1000) / 1000.0);   // a chart doesn't need more than 3 decimals
+   }
+
+   /**<!====== isNotModified =================================================>
+      Checks the conditional request headers against the entity tag and last
+      modified time of a cached chart.  If-None-Match takes precedence over
+      If-Modified-Since when both are present.
    <!=======================================================================>*/
-   private float totalDemand(SystemConnection connection, final String path, final String trendName, final Date start, final Date end) throws SystemException, ActionExecutionException
+   private static boolean isNotModified(HttpServletRequest request, String eTag, long lastModified)
    {
-      return connection.runReadAction(FieldAccessFactory.newFieldAccess(), new ReadActionResult<Float>()
+      String ifNoneMatch = request.getHeader("If-None-Match");
+      if (ifNoneMatch != null)
       {
-         public Float execute(SystemAccess access) throws Exception
+         for (String tag : ifNoneMatch.split(","))
          {
-            Location eq = access.getTree(SystemTree.Geographic).resolve(path);
-            Collection<AnalogTrendSource> trendSourceCollection = eq.find(AnalogTrendSource.class,
-                                                                          Acceptors.enabledTrendSourceByName(trendName));
-
-            AnalogTrendSource source = trendSourceCollection.iterator().next();
-            TrendData<TrendAnalogSample> data = source.getTrendData(TrendRangeFactory.byDateRange(start, end));
-            Integrator integrator = data.process(new Integrator());
-            return integrator.getValue();
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+               tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(eTag))
+               return true;
          }
-      });
+         return false;
+      }
+
+      try
+      {
+         long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+         return ifModifiedSince != -1 && ifModifiedSince >= lastModified;
+      }
+      catch (IllegalArgumentException e)
+      {
+         return false;
+      }
    }
 
-   /**<!=========================================================================>
-      TrendProcessor that integrates the samples from an electrical kW trend source
-      to determine kWH demand.  Holes in the data are not counted towards the total
-      demand.
-   <!==========================================================================>*/
-   private static class Integrator implements TrendProcessor<TrendAnalogSample>
+   /**<!====== writeCacheable ================================================>
+      Writes content that will not change (for days that are over), with the
+      headers that let the browser cache it, or just a "not modified" status
+      if the browser already has it.
+   <!=======================================================================>*/
+   private static void writeCacheable(HttpServletRequest request, HttpServletResponse response, String contentType,
+                                      byte[] content, String eTag, long lastModified)
    {
-      private float total = 0;
-      TrendAnalogSample lastSample = null;
-      Date lastTime = null;
+      response.setHeader("Cache-Control", "private, max-age=" + COMPLETED_DAY_MAX_AGE);
+      response.setHeader("ETag", eTag);
+      response.setDateHeader("Last-Modified", lastModified);
+      if (isNotModified(request, eTag, lastModified))
+         response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      else
+         write(response, contentType, content);
+   }
+
+   private static void writeUncached(HttpServletResponse response, String contentType, byte[] content)
+   {
+      response.setHeader("Cache-Control", "no-cache");
+      write(response, contentType, content);
+   }
 
-      public void processStart(Date startTime, TrendAnalogSample startBookend)
+   private static void write(HttpServletResponse response, String contentType, byte[] content)
+   {
+      response.setContentType(contentType);
+      response.setContentLength(content.length);
+      try
       {
-         // For this application, ignore the time before the first sample.
-         // For some applications (like COV binary trends) you really need to know what the previous
-         // real sample value was before the requested range
+         response.getOutputStream().write(content);
       }
+      catch (IOException e)
+      {
+         //ignore errors writing out the response
+      }
+   }
 
-      public void processData(TrendAnalogSample sample)
+   // throws NumberFormatException if a numeric parameter is missing or malformed
+   private GraphParameters extractParameters(HttpServletRequest request)
+   {
+      Date[] days = getDays(request);
+      String trend = request.getParameter("trend");
+      List<String> eqs = new ArrayList<String>();
+      int eqNum = 0;
+      for (;;)
       {
-         // Don't process the very first sample - we need two samples to integrate between.  Just store it in lastSample
-         if (lastSample != null)
-         {
-            // We have two samples, add their contribution to the total
-            total += integrateStep(lastSample, sample);
-         }
-         else if (lastTime != null)    // Handle the first data after a hole
-         {
-            // assume same value from last known time and this sample.  This handle trailing edge of processHole
-            total += integrateStep(lastTime.getTime(), sample.floatValue(), sample.getTimeInMillis(), sample.floatValue());
-            lastTime = null;
-         }
-         lastSample = sample;
+         String eqName = request.getParameter("eq"+eqNum);
+         if (eqName == null)
+            break;
+         eqs.add(eqName);
+         ++eqNum;
       }
 
-      public void processEnd(Date endTime, TrendAnalogSample endBookend)
+      // The order of the equipment depends on how the browser happens to hold them, so use a
+      // fixed order.  Then the same graph always looks the same, and identical requests match.
+      eqs = new ArrayList<String>(new TreeSet<String>(eqs));
+
+      // optional limit on how many threads fetch trend data for this graph
+      String parallelism = request.getParameter("parallelism");
+      int maxThreads = parallelism == null ? Integer.MAX_VALUE : Math.max(1, Integer.parseInt(parallelism));
+
+      // optional image size
+      int width = getSize(request, "width", DEFAULT_WIDTH);
+      int height = getSize(request, "height", DEFAULT_HEIGHT);
+
+      return new GraphParameters(days, trend, eqs, maxThreads, width, height);
+   }
+
+   /**<!====== getDays =======================================================>
+      Returns the start of each day to graph, followed by the end of the last
+      day.
+   <!=======================================================================>*/
+   private Date[] getDays(HttpServletRequest request)
+   {
+      Date first;
+      int count;
+      String start = request.getParameter("start");
+      if (start != null)
+      {
+         first = getMidnight(new Date(Long.parseLong(start)));
+         String end = request.getParameter("end");
+         Date last = end == null ? first : getMidnight(new Date(Long.parseLong(end)));
+         count = 1;
+         Calendar cal = new GregorianCalendar();
+         cal.setTime(first);
+         for (cal.add(Calendar.DATE, 1); !cal.getTime().after(last) && count < MAX_DAYS; cal.add(Calendar.DATE, 1))
+            ++count;
+      }
+      else
       {
-         // ignore the time after the last sample
+         String days = request.getParameter("days");
+         count = days == null ? 1 : Math.max(1, Math.min(MAX_DAYS, Integer.parseInt(days)));
+         Calendar cal = new GregorianCalendar();
+         cal.setTime(getMidnight(new Date(Long.parseLong(request.getParameter("date")))));
+         cal.add(Calendar.DATE, 1 - count);
+         first = cal.getTime();
       }
 
-      public void processHole(Date start, Date end)
+      Date[] boundaries = new Date[count + 1];
+      Calendar cal = new GregorianCalendar();
+      cal.setTime(first);
+      for (int i = 0; i <= count; i++)
       {
-         // Total up the contribution from the last sample to the beginning of the hole (assuming the value didn't change)
-         total += integrateStep(lastSample.getTimeInMillis(), lastSample.floatValue(), start.getTime(), lastSample.floatValue());
-         lastTime = end;
-         lastSample = null;
+         boundaries[i] = cal.getTime();
+         cal.add(Calendar.DATE, 1);
       }
+      return boundaries;
+   }
 
-      public float getValue()
+   private static int getSize(HttpServletRequest request, String name, int defaultValue)
+   {
+      String value = request.getParameter(name);
+      if (value == null)
+         return defaultValue;
+      return Math.max(1, Math.min(MAX_SIZE, Integer.parseInt(value)));
+   }
+
+   private SystemConnection createConnection(HttpServletRequest request) throws ServletException
+   {
+      try
+      {
+         return DirectAccess.getDirectAccess().getUserSystemConnection(request);
+      }
+      catch (InvalidConnectionRequestException e)
       {
-         return total;
+         throw new ServletException(e);
       }
+   }
 
-      /**<!====== integrateStep =================================================>
-         Perform a geometric integration of the area under this piece of a curve
-         (assuming a straight line approximation of values between the two points).
-         <!      Name       Description>
-         @param  startTime  Time of starting sample in milliSeconds.
-         @param  startValue Starting value in kW.
-         @param  endTime    Time of ending sample in milliSeconds.
-         @param  endValue   Ending value in kW.
-         @return area under this piece of the curve in kwH.
-      <!=======================================================================>*/
-      private double integrateStep(long startTime, float startValue, long endTime, float endValue)
+   private GraphData loadData(SystemConnection connection, GraphParameters params) throws ServletException
+   {
+      GraphData data;
+      try
+      {
+         data = loader.load(connection, params.getTrend(), params.getEqs(), params.getDays(), params.getParallelism());
+      }
+      catch (Exception e)
       {
-         double min = Math.min(startValue, endValue);
-         double max = Math.max(startValue, endValue);
-         double hours = ((double)(endTime - startTime)) / (1000.0 * 60.0 *60.0);
-         return (min + (max - min)/2) * hours;
+         throw new ServletException(e);
       }
 
-      private double integrateStep(TrendAnalogSample first, TrendAnalogSample second)
+      for (String failure : data.getFailures())
+         log("Unable to graph " + params.getTrend() + " for " + failure);
+      return data;
+   }
+
+   private byte[] renderChart(GraphParameters params, GraphData data) throws IOException
+   {
+      // Generate the graph from the dataset and encode it as a PNG
+      JFreeChart chart = createChart(params, data);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+      ChartUtilities.writeChartAsPNG(out, chart, params.getWidth(), params.getHeight());
+      return out.toByteArray();
+   }
+
+   private JFreeChart createChart(GraphParameters params, GraphData data)
+   {
+      DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+      for (GraphData.Series series : data.getSeries())
       {
-         return integrateStep(first.getTimeInMillis(), first.floatValue(), second.getTimeInMillis(), second.floatValue());
+         // Add the values as a new data series in the graph's dataset, with a category for each day
+         for (int day = 0; day < series.getDayCount(); day++)
+            dataset.addValue(series.getValue(day), series.getName(), params.getDayString(day));
       }
 
+      JFreeChart chart = theme.createChart("Integration Over Time", getPeriod(params), dataset);
+      if (!data.getFailures().isEmpty())
+         chart.addSubtitle(theme.createWarning(data.getFailures().size() + " equipment could not be read"));
+      return chart;
+   }
+
+   private static String getPeriod(GraphParameters params)
+   {
+      return params.getDayCount() == 1 ? "24 Hour Period" : params.getDayCount() + " Day Period";
    }
 
    Date getMidnight(Date onDate)
@@ -326,24 +725,120 @@ public class GraphServlet extends HttpServlet
       return cal.getTime();
    }
 
-   private static class GraphParameters
+   /**<!=========================================================================>
+      Identifies a rendering for coalescing identical requests.
+   <!==========================================================================>*/
+   private static class RenderKey
    {
-      private static final DateFormat DATE_FORMAT = DateFormat.getDateInstance(DateFormat.SHORT);
+      private final boolean chart;
+      private final String operator;
+      private final GraphParameters params;
+
+      private RenderKey(boolean chart, String operator, GraphParameters params)
+      {
+         this.chart = chart;
+         this.operator = operator;
+         this.params = params;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (this == o) return true;
+         if (o == null || getClass() != o.getClass()) return false;
 
-      private final Date date;
+         RenderKey key = (RenderKey) o;
+
+         if (chart != key.chart) return false;
+         if (operator != null ? !operator.equals(key.operator) : key.operator != null) return false;
+         if (!params.equals(key.params)) return false;
+
+         return true;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int result = chart ? 1 : 0;
+         result = 31 * result + (operator != null ? operator.hashCode() : 0);
+         result = 31 * result + params.hashCode();
+         return result;
+      }
+   }
+
+   /**<!=========================================================================>
+      The loaded data and its rendered (PNG or JSON) form.
+   <!==========================================================================>*/
+   private static class Rendering
+   {
+      private final GraphData data;
+      private final byte[] content;
+
+      private Rendering(GraphData data, byte[] content)
+      {
+         this.data = data;
+         this.content = content;
+      }
+   }
+
+   private static class GraphParameters
+   {
+      private final Date[] days;
       private final String trend;
       private final List<String> eqs;
+      private final int parallelism;
+      private final int width;
+      private final int height;
 
-      private GraphParameters(Date date, String trend, List<String> eqs)
+      private GraphParameters(Date[] days, String trend, List<String> eqs, int parallelism, int width, int height)
       {
-         this.date = date;
+         this.days = days;
          this.trend = trend;
          this.eqs = eqs;
+         this.parallelism = parallelism;
+         this.width = width;
+         this.height = height;
       }
 
-      public Date getDate() { return date; }
-      public String getDateString() { return DATE_FORMAT.format(date); }
+      public Date[] getDays() { return days; }
+      public int getDayCount() { return days.length - 1; }
+      public Date getStart() { return days[0]; }
+      public Date getEnd() { return days[days.length - 1]; }
+      // DateFormat is not thread safe, and the parameters are used from the render threads
+      public String getDayString(int day) { return DateFormat.getDateInstance(DateFormat.SHORT).format(days[day]); }
+
+      // Parameters are equal if they produce the same graph (the parallelism only changes how fast)
+      @Override
+      public boolean equals(Object o)
+      {
+         if (this == o) return true;
+         if (o == null || getClass() != o.getClass()) return false;
+
+         GraphParameters that = (GraphParameters) o;
+
+         if (width != that.width) return false;
+         if (height != that.height) return false;
+         if (!Arrays.equals(days, that.days)) return false;
+         if (trend != null ? !trend.equals(that.trend) : that.trend != null) return false;
+         if (!eqs.equals(that.eqs)) return false;
+
+         return true;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int result = Arrays.hashCode(days);
+         result = 31 * result + (trend != null ? trend.hashCode() : 0);
+         result = 31 * result + eqs.hashCode();
+         result = 31 * result + width;
+         result = 31 * result + height;
+         return result;
+      }
       public String getTrend() { return trend; }
       public List<String> getEqs() { return eqs; }
+      public int getParallelism() { return parallelism; }
+      public int getWidth() { return width; }
+      public int getHeight() { return height; }
    }
 }
\ No newline at end of file
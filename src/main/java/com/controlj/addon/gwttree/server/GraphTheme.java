@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import org.jfree.chart.ChartTheme;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryAxis3D;
+import org.jfree.chart.axis.NumberAxis3D;
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.title.LegendTitle;
+import org.jfree.chart.title.TextTitle;
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.util.SortOrder;
+
+import javax.servlet.ServletConfig;
+import java.awt.*;
+
+/**<!=========================================================================>
+   The look of the charts rendered by {@link GraphServlet}.  The fonts and
+   paints are created once (usually at servlet init) and shared by all the
+   charts.  Renderers and axes keep state while a chart is drawn, so every
+   chart needs its own; a new renderer is cheaper to make than a copy of a
+   configured one.
+   <p/>
+   Charts are built directly rather than through ChartFactory, which would
+   apply its own (default) theme to every chart only for this theme to
+   replace most of it again.  The parts are styled before they are put
+   together, so setting them up does not send change events up to the plot
+   and chart.
+   <p/>
+   Most of these options are not required for a simple chart, but we wanted
+   to try to get a particular look that matched another charting package, so
+   we went to some trouble to set a lot of non-standard options.  In
+   particular, the OpaqueBarRenderer3D is a non-standard renderer that gives
+   much better looking 3D bars.
+<!==========================================================================>*/
+class GraphTheme implements ChartTheme
+{
+   public static final String DEFAULT_FONT_NAME = "Verdana";
+   public static final Color DEFAULT_BACKGROUND = Color.black;
+   public static final Color DEFAULT_FOREGROUND = Color.white;
+   public static final Color[] DEFAULT_SERIES_COLORS =
+   {
+      new Color(116,225,118), new Color(245,107,107), new Color(250,187,107), new Color(72,72,238), new Color(184,32,157)
+   };
+
+   private final Font titleFont;
+   private final Font smallFont;
+   private final Font bigFont;
+   private final Color background;
+   private final Color foreground;
+   private final Color[] seriesColors;
+
+   public GraphTheme()
+   {
+      this(DEFAULT_FONT_NAME, DEFAULT_BACKGROUND, DEFAULT_FOREGROUND, DEFAULT_SERIES_COLORS);
+   }
+
+   public GraphTheme(String fontName, Color background, Color foreground, Color[] seriesColors)
+   {
+      this.titleFont = new Font(fontName, Font.BOLD, 20);
+      this.smallFont = new Font(fontName, Font.PLAIN, 12);
+      this.bigFont = new Font(fontName, Font.BOLD, 14);
+      this.background = background;
+      this.foreground = foreground;
+      this.seriesColors = seriesColors.length > 0 ? seriesColors.clone() : DEFAULT_SERIES_COLORS;
+   }
+
+   /**<!====== create ========================================================>
+      Creates the theme from the (optional) init parameters "chartFont" (a font
+      family name), "chartBackground" and "chartForeground" (colors like
+      #000000) and "chartSeriesColors" (a comma separated list of colors).
+   <!=======================================================================>*/
+   public static GraphTheme create(ServletConfig config)
+   {
+      String fontName = InitParameters.getString(config, "chartFont", DEFAULT_FONT_NAME);
+      Color background = getColor(config, "chartBackground", DEFAULT_BACKGROUND);
+      Color foreground = getColor(config, "chartForeground", DEFAULT_FOREGROUND);
+
+      Color[] seriesColors = DEFAULT_SERIES_COLORS;
+      String seriesValue = InitParameters.getString(config, "chartSeriesColors", null);
+      if (seriesValue != null)
+      {
+         try
+         {
+            String[] values = seriesValue.split(",");
+            seriesColors = new Color[values.length];
+            for (int i = 0; i < values.length; i++)
+               seriesColors[i] = Color.decode(values[i].trim());
+         }
+         catch (NumberFormatException e)
+         {
+            config.getServletContext().log("Ignoring invalid value '" + seriesValue + "' for init parameter chartSeriesColors");
+            seriesColors = DEFAULT_SERIES_COLORS;
+         }
+      }
+      return new GraphTheme(fontName, background, foreground, seriesColors);
+   }
+
+   private static Color getColor(ServletConfig config, String name, Color defaultValue)
+   {
+      String value = InitParameters.getString(config, name, null);
+      if (value == null)
+         return defaultValue;
+
+      try
+      {
+         return Color.decode(value);
+      }
+      catch (NumberFormatException e)
+      {
+         config.getServletContext().log("Ignoring invalid value '" + value + "' for init parameter " + name);
+         return defaultValue;
+      }
+   }
+
+   /**<!====== getSeriesColor ================================================>
+      Returns the color of the given series.  The configured colors are
+      repeated when there are more series than colors.
+   <!=======================================================================>*/
+   public Color getSeriesColor(int series)
+   {
+      return seriesColors[series % seriesColors.length];
+   }
+
+   /**<!====== createChart ===================================================>
+      Creates a themed 3D bar chart (like ChartFactory.createBarChart3D, with a
+      legend) for the dataset.
+   <!=======================================================================>*/
+   public JFreeChart createChart(String title, String categoryLabel, CategoryDataset dataset)
+   {
+      CategoryAxis domainAxis = new CategoryAxis3D(categoryLabel);
+      applyToDomainAxis(domainAxis);
+      ValueAxis rangeAxis = new NumberAxis3D("");
+      applyToRangeAxis(rangeAxis);
+
+      CategoryPlot plot = new CategoryPlot(dataset, domainAxis, rangeAxis, createRenderer(dataset.getRowCount()));
+      plot.setOrientation(PlotOrientation.VERTICAL);
+      plot.setRowRenderingOrder(SortOrder.DESCENDING);
+      plot.setColumnRenderingOrder(SortOrder.DESCENDING);
+      plot.setForegroundAlpha(1);
+      plot.setBackgroundPaint(background);
+
+      JFreeChart chart = new JFreeChart(title, titleFont, plot, true);
+      applyToChart(chart);
+      return chart;
+   }
+
+   /**<!====== apply =========================================================>
+      Applies the theme to a bar chart.  The chart's renderer is replaced by a
+      new OpaqueBarRenderer3D unless it already is one.
+   <!=======================================================================>*/
+   public void apply(JFreeChart chart)
+   {
+      CategoryPlot plot = (CategoryPlot) chart.getPlot();
+      int seriesCount = plot.getDataset() == null ? 0 : plot.getDataset().getRowCount();
+      if (plot.getRenderer() instanceof OpaqueBarRenderer3D)
+      {
+         for (int i = 0; i < seriesCount; i++)
+            plot.getRenderer().setSeriesPaint(i, getSeriesColor(i));
+      }
+      else
+         plot.setRenderer(createRenderer(seriesCount));
+      plot.setForegroundAlpha(1);
+      plot.setBackgroundPaint(background);
+
+      applyToDomainAxis(plot.getDomainAxis());
+      applyToRangeAxis(plot.getRangeAxis());
+      applyToChart(chart);
+   }
+
+   private void applyToDomainAxis(CategoryAxis domainAxis)
+   {
+      domainAxis.setTickLabelPaint(foreground);
+      domainAxis.setTickLabelFont(smallFont);
+      domainAxis.setLabelPaint(foreground);
+      domainAxis.setLabelFont(bigFont);
+      domainAxis.setCategoryMargin(0.2);
+   }
+
+   private void applyToRangeAxis(ValueAxis rangeAxis)
+   {
+      rangeAxis.setTickLabelPaint(foreground);
+      rangeAxis.setTickLabelFont(smallFont);
+      rangeAxis.setLabelPaint(foreground);
+      rangeAxis.setLabelFont(bigFont);
+   }
+
+   private void applyToChart(JFreeChart chart)
+   {
+      chart.setBackgroundPaint(background);
+      chart.getTitle().setPaint(foreground);
+      chart.getTitle().setFont(titleFont);
+      chart.setAntiAlias(true);
+      chart.setTextAntiAlias(true);
+
+      LegendTitle legend = chart.getLegend();
+      legend.setBackgroundPaint(background);
+      legend.setItemPaint(foreground);
+      legend.setItemFont(bigFont);
+   }
+
+   /**<!====== createWarning =================================================>
+      Creates a subtitle for warning about a problem with the chart's data.
+   <!=======================================================================>*/
+   public TextTitle createWarning(String text)
+   {
+      TextTitle warning = new TextTitle(text, smallFont);
+      warning.setPaint(foreground);
+      return warning;
+   }
+
+   // The configured colors are repeated for as many series as there are
+   private OpaqueBarRenderer3D createRenderer(int seriesCount)
+   {
+      OpaqueBarRenderer3D renderer = new OpaqueBarRenderer3D();
+      renderer.setItemMargin(0.1);
+      for (int i = 0; i < seriesCount; i++)
+         renderer.setSeriesPaint(i, getSeriesColor(i), false);
+      renderer.setDrawBarOutline(false);
+      renderer.setItemLabelPaint(foreground);
+      return renderer;
+   }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import javax.servlet.ServletConfig;
+
+/**<!=========================================================================>
+   Helper for reading the optional servlet init parameters (from web.xml) used
+   to tune the add-on.  Missing or malformed values fall back to the given
+   default.
+<!==========================================================================>*/
+class InitParameters
+{
+   private InitParameters() { }
+
+   public static String getString(ServletConfig config, String name, String defaultValue)
+   {
+      String value = config.getInitParameter(name);
+      if (value == null || value.trim().length() == 0)
+         return defaultValue;
+      return value.trim();
+   }
+
+   public static long getLong(ServletConfig config, String name, long defaultValue)
+   {
+      String value = getString(config, name, null);
+      if (value == null)
+         return defaultValue;
+
+      try
+      {
+         return Long.parseLong(value);
+      }
+      catch (NumberFormatException e)
+      {
+         config.getServletContext().log("Ignoring invalid value '" + value + "' for init parameter " + name);
+         return defaultValue;
+      }
+   }
+
+   public static int getInt(ServletConfig config, String name, int defaultValue)
+   {
+      return (int) getLong(config, name, defaultValue);
+   }
+
+   public static boolean getBoolean(ServletConfig config, String name, boolean defaultValue)
+   {
+      String value = getString(config, name, null);
+      return value == null ? defaultValue : Boolean.parseBoolean(value);
+   }
+}
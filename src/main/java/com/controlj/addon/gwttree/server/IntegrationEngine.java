@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+/**<!=========================================================================>
+   Integrates demand (kW) samples to determine consumption (kWH) for each day
+   in a range.  Samples are given as primitive times and values, either one
+   at a time or from arrays, and nothing is allocated while integrating, so
+   an engine can be {@link #reset} and reused.
+   <p/>
+   Values between two samples are approximated by a straight line.  The time
+   before the first sample and after the last sample is ignored.  Holes in
+   the data are not counted: the last value before a hole is assumed to hold
+   until the hole starts, and the first value after a hole is assumed to hold
+   from the end of the hole.  Each day is integrated as if its data had been
+   fetched on its own, so nothing is carried over from one day to the next,
+   and a day's total does not depend on the range it was fetched with.
+   <p/>
+   Samples and holes must be given in time order.  Engines are not thread
+   safe.
+<!==========================================================================>*/
+final class IntegrationEngine
+{
+   private static final double MILLIS_PER_HOUR = 1000.0 * 60.0 * 60.0;
+
+   private final long[] boundaries;
+   private final double[] sums;
+   private int day;
+   private long dayEnd;
+
+   private boolean haveLast;
+   private long lastTime;
+   private double lastValue;
+   private boolean afterHole;
+   private long holeEnd;
+
+   /**<!====== IntegrationEngine =============================================>
+      Creates an engine for the days between the given times.
+      <!      Name       Description>
+      @param  boundaries Start of each day, followed by the end of the last day.
+   <!=======================================================================>*/
+   IntegrationEngine(long[] boundaries)
+   {
+      if (boundaries.length < 2)
+         throw new IllegalArgumentException("At least one day is required");
+      this.boundaries = boundaries;
+      this.sums = new double[boundaries.length - 1];
+      reset();
+   }
+
+   /**<!====== reset =========================================================>
+      Discards everything integrated so far.
+   <!=======================================================================>*/
+   public void reset()
+   {
+      for (int i = 0; i < sums.length; i++)
+         sums[i] = 0;
+      day = 0;
+      dayEnd = endOfDay(0);
+      haveLast = false;
+      afterHole = false;
+   }
+
+   public int getDayCount()
+   {
+      return sums.length;
+   }
+
+   /**<!====== getTotal ======================================================>
+      Returns the consumption (in kWH) integrated for a day so far.
+   <!=======================================================================>*/
+   public double getTotal(int day)
+   {
+      // the sums are of (value + value) * milliseconds, so halve and convert to hours once here
+      return sums[day] / (2 * MILLIS_PER_HOUR);
+   }
+
+   public double[] getTotals()
+   {
+      double[] totals = new double[sums.length];
+      for (int i = 0; i < totals.length; i++)
+         totals[i] = getTotal(i);
+      return totals;
+   }
+
+   /**<!====== addSample =====================================================>
+      Adds the sample with the given time (in milliseconds) and value (in kW).
+   <!=======================================================================>*/
+   public void addSample(long time, double value)
+   {
+      if (time >= dayEnd)
+         startDay(time);
+
+      if (haveLast)
+      {
+         // We have two samples, add their contribution to the total
+         sums[day] += (lastValue + value) * (time - lastTime);
+      }
+      else if (afterHole)
+      {
+         // The first data after a hole - assume the same value from the end of the hole to this sample
+         sums[day] += (value + value) * (time - holeEnd);
+         afterHole = false;
+      }
+      haveLast = true;
+      lastTime = time;
+      lastValue = value;
+   }
+
+   /**<!====== addSamples ====================================================>
+      Adds a run of samples (with no holes between them) from arrays of times
+      (in milliseconds) and values (in kW).
+   <!=======================================================================>*/
+   public void addSamples(long[] times, double[] values, int offset, int length)
+   {
+      int end = offset + length;
+      int i = offset;
+
+      // the first sample may start a day or follow a hole, so it takes the general path
+      if (i < end && !haveLast)
+      {
+         addSample(times[i], values[i]);
+         ++i;
+      }
+
+      long previousTime = lastTime;
+      double previousValue = lastValue;
+      double sum = sums[day];
+      for (; i < end; i++)
+      {
+         long time = times[i];
+         if (time >= dayEnd)
+         {
+            // store what we have, and let the general path start the new day
+            sums[day] = sum;
+            lastTime = previousTime;
+            lastValue = previousValue;
+            addSample(time, values[i]);
+            previousTime = lastTime;
+            previousValue = lastValue;
+            sum = sums[day];
+            continue;
+         }
+
+         double value = values[i];
+         sum += (previousValue + value) * (time - previousTime);
+         previousTime = time;
+         previousValue = value;
+      }
+      sums[day] = sum;
+      lastTime = previousTime;
+      lastValue = previousValue;
+   }
+
+   /**<!====== addHole =======================================================>
+      Adds a hole in the data from start to end (in milliseconds).
+   <!=======================================================================>*/
+   public void addHole(long start, long end)
+   {
+      // Total up the contribution from the last sample to the beginning of the hole (assuming the value didn't change),
+      // unless the hole starts after the end of the last sample's day
+      if (haveLast && start <= dayEnd)
+         sums[day] += (lastValue + lastValue) * (start - lastTime);
+      haveLast = false;
+      afterHole = true;
+      holeEnd = end;
+   }
+
+   /**<!====== startDay ======================================================>
+      Moves on to the day containing the given time.  The previous day's
+      sample is forgotten, and the end of a hole is kept only if it is in the
+      new day.
+   <!=======================================================================>*/
+   private void startDay(long time)
+   {
+      while (time >= dayEnd)
+      {
+         ++day;
+         dayEnd = endOfDay(day);
+      }
+      haveLast = false;
+      if (afterHole && holeEnd < boundaries[day])
+         afterHole = false;
+   }
+
+   /**<!====== endOfDay ======================================================>
+      Returns the end of the given day, except that everything after the
+      start of the last day belongs to the last day.
+   <!=======================================================================>*/
+   private long endOfDay(int day)
+   {
+      return day < sums.length - 1 ? boundaries[day + 1] : Long.MAX_VALUE;
+   }
+}
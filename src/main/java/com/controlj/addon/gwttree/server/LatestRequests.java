@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**<!=========================================================================>
+   Tracks the latest graph request for each view (for example a trend's tab
+   in one browser session), so the work for a request that has been replaced
+   by a newer one can be dropped.  A request registers when it arrives and
+   checks its {@link Token} at points where it could stop early; once a
+   request with different parameters is registered for the same view, the
+   older request is superseded.  Registering the same parameters again
+   shares the token, since the result is still wanted.
+<!==========================================================================>*/
+class LatestRequests
+{
+   private final Map<String, Token> latest = new HashMap<String, Token>();
+   private final AtomicLong superseded = new AtomicLong();
+
+   /**<!====== register ======================================================>
+      Registers a request for the view, superseding any other request for it.
+      <!      Name          Description>
+      @param  view          the view, or null if the request can't be
+                            superseded.
+      @param  params        the request's parameters (compared with equals).
+      @return the token to check and, once the request is done, pass to
+              {@link #done}.
+   <!=======================================================================>*/
+   public synchronized Token register(String view, Object params)
+   {
+      Token current = view == null ? null : latest.get(view);
+      if (current != null && current.params.equals(params))
+      {
+         ++current.users;
+         return current;
+      }
+
+      Token token = new Token(view, params);
+      if (current != null)
+      {
+         current.superseded = true;
+         superseded.incrementAndGet();
+      }
+      if (view != null)
+         latest.put(view, token);
+      return token;
+   }
+
+   public synchronized void done(Token token)
+   {
+      if (--token.users == 0 && token.view != null && latest.get(token.view) == token)
+         latest.remove(token.view);
+   }
+
+   /**<!====== getSupersededCount ============================================>
+      Returns how many requests have been superseded (whether or not they
+      were still being worked on).
+   <!=======================================================================>*/
+   public long getSupersededCount()
+   {
+      return superseded.get();
+   }
+
+   public static class Token
+   {
+      private final String view;
+      private final Object params;
+      private int users = 1;
+      private volatile boolean superseded;
+
+      private Token(String view, Object params)
+      {
+         this.view = view;
+         this.params = params;
+      }
+
+      public boolean isSuperseded() { return superseded; }
+
+      /**<!====== check =====================================================>
+         Throws if a newer request has replaced this one.
+      <!===================================================================>*/
+      public void check() throws SupersededException
+      {
+         if (superseded)
+            throw new SupersededException();
+      }
+   }
+
+   /**<!=========================================================================>
+      Thrown when a request stops because a newer one has replaced it.
+   <!==========================================================================>*/
+   public static class SupersededException extends Exception
+   {
+      public SupersededException()
+      {
+         super("Replaced by a newer request");
+      }
+   }
+}
@@ -27,6 +27,7 @@ import org.jfree.chart.axis.ValueAxis;
 import org.jfree.chart.entity.EntityCollection;
 import org.jfree.chart.labels.CategoryItemLabelGenerator;
 import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotRenderingInfo;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.renderer.category.BarRenderer3D;
 import org.jfree.chart.renderer.category.CategoryItemRendererState;
@@ -35,13 +36,22 @@ import org.jfree.ui.RectangleEdge;
 
 import java.awt.*;
 import java.awt.geom.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**<!=========================================================================>
    Renders an opaque 3D bar for a data series.  Paints the bar with a gradient
-   from the specified color to a darker shade.
+   from the specified color to a darker shade.  The shapes for each bar are
+   reused from the renderer state, and the shades of each color are derived
+   only once.
 <!==========================================================================>*/
 public class OpaqueBarRenderer3D extends BarRenderer3D
 {
+   private static final Stroke THIN_STROKE = new BasicStroke(1);
+
+   // derived colors for each primary color, shared by all renderers
+   private static final ConcurrentMap<Color, Shades> SHADES = new ConcurrentHashMap<Color, Shades>();
+
    public OpaqueBarRenderer3D()
    {
       super();
@@ -52,6 +62,20 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
       super(xOffset, yOffset);
    }
 
+   /**<!====== initialise ====================================================>
+      Initialises the renderer state for drawing a chart.  The state holds
+      the shapes that are reused for every bar.
+   <!=======================================================================>*/
+   @Override
+   public CategoryItemRendererState initialise(Graphics2D g2,
+                                               Rectangle2D dataArea,
+                                               CategoryPlot plot,
+                                               int rendererIndex,
+                                               PlotRenderingInfo info) {
+      CategoryItemRendererState state = super.initialise(g2, dataArea, plot, rendererIndex, info);
+      return new OpaqueState(info, state);
+   }
+
    /**<!====== drawItem ======================================================>
       Draws a 3D bar to represent one data item.
       <!      Name       Description>
@@ -84,10 +108,14 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
            return;
        }
 
-      g2.setStroke(new BasicStroke(1));
+      // states from elsewhere (not created by initialise) just get their own shapes
+      OpaqueState scratch = state instanceof OpaqueState ? (OpaqueState) state : new OpaqueState(null, state);
+
+      g2.setStroke(THIN_STROKE);
        double value = dataValue.doubleValue();
 
-       Rectangle2D adjusted = new Rectangle2D.Double(dataArea.getX(),
+       Rectangle2D.Double adjusted = scratch.adjusted;
+       adjusted.setRect(dataArea.getX(),
                dataArea.getY() + getYOffset(),
                dataArea.getWidth() - getXOffset(),
                dataArea.getHeight() - getYOffset());
@@ -108,22 +136,21 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
        double barLength = Math.abs(transL1 - transL0);
 
        // draw the bar...
-       Rectangle2D bar = null;
+       Rectangle2D.Double bar = scratch.bar;
        if (orientation == PlotOrientation.HORIZONTAL) {
-           bar = new Rectangle2D.Double(barL0, barW0, barLength,
+           bar.setRect(barL0, barW0, barLength,
                    state.getBarWidth());
        }
        else {
-           bar = new Rectangle2D.Double(barW0, barL0, state.getBarWidth(),
+           bar.setRect(barW0, barL0, state.getBarWidth(),
                    barLength);
        }
        Paint itemPaint = getItemPaint(row, column);
-      if (itemPaint instanceof Color)
+      Shades shades = itemPaint instanceof Color ? getShades((Color) itemPaint) : null;
+      if (shades != null)
       {
-         Color endColor = getFrontDark((Color) itemPaint);
-         Color startColor = (Color) itemPaint;
-         Paint paint = new GradientPaint((float)bar.getX(), (float)bar.getY(), startColor, (float)(bar.getX()), (float)(bar.getY()+bar.getHeight()), endColor);
-         g2.setPaint(paint);
+         // the gradients depend on where the bar is, so they can't be reused
+         g2.setPaint(new GradientPaint((float)bar.getX(), (float)bar.getY(), shades.primary, (float)(bar.getX()), (float)(bar.getY()+bar.getHeight()), shades.frontDark));
       }
       g2.fill(bar);
 
@@ -137,9 +164,8 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
        double y2 = bar.getMaxY() - getYOffset();   // offset bottom
        double y3 = bar.getMaxY();                  // bottom
 
-      //Rectangle2D.Double line = new Rectangle2D.Double(x2, y1, 2, bar.getHeight());
-
-      Line2D.Double line = new Line2D.Double(x2, y1, x2, y3);
+      Line2D.Double line = scratch.line;
+      line.setLine(x2, y1, x2, y3);
       g2.draw(line);
 
       GeneralPath bar3dRight = null;
@@ -148,41 +174,34 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
 
       // Draw the right side
        if (barLength > 0.0) {
-           bar3dRight = new GeneralPath();
+           bar3dRight = scratch.right;
+           bar3dRight.reset();
            bar3dRight.moveTo((float) x2, (float) y3);
            bar3dRight.lineTo((float) x2, (float) y1);
            bar3dRight.lineTo((float) x3, (float) y0);
            bar3dRight.lineTo((float) x3, (float) y2);
            bar3dRight.closePath();
 
-           if (itemPaint instanceof Color) {
-              Color startColor = getSideLight((Color) itemPaint);
-              Color endColor = getSideDark((Color) itemPaint);
-              Paint paint = new GradientPaint((float)x3, (float)y0, startColor, (float)x2, (float)y3, endColor);
-              g2.setPaint(paint);
+           if (shades != null) {
+              g2.setPaint(new GradientPaint((float)x3, (float)y0, shades.sideLight, (float)x2, (float)y3, shades.sideDark));
            }
            g2.fill(bar3dRight);
        }
 
       // Draw the top
-       bar3dTop = new GeneralPath();
+       bar3dTop = scratch.top;
+       bar3dTop.reset();
        bar3dTop.moveTo((float) x0, (float) y1);    // bottom left
        bar3dTop.lineTo((float) x1, (float) y0);    // top left
        bar3dTop.lineTo((float) x3, (float) y0);    // top right
        bar3dTop.lineTo((float) x2, (float) y1);    // bottom right
        bar3dTop.closePath();
-      if (itemPaint instanceof Color)
+      if (shades != null)
       {
-         Color endColor = getTopDark((Color) itemPaint);
-         Color startColor = getTopLight((Color) itemPaint);
-         //Paint paint = new GradientPaint((float)x2, (float)y0, startColor, (float)x0, (float)(y1), endColor);
-         Point2D.Double topRight = new Point2D.Double(x3, y0);
-         Point2D.Double bottomLeft = new Point2D.Double(x0, y1);
-         //Point2D.Double darkEnd = getTargetPoint(bottomLeft, topRight, ((y0-y1)/(x3-x2)));
-         Point2D.Double darkEnd = new Point2D.Double(x1, y0-(x3-x1)*((y0-y1)/(x3-x2)));
-         Paint paint = new GradientPaint((float)topRight.getX(), (float)topRight.getY(), startColor, (float)darkEnd.getX(), (float)darkEnd.getY(), endColor);
-         g2.setPaint(paint);
-         //drawMarker(topRight, g2, startColor);
+         // light from the top right corner to a dark end along the top's left edge
+         double darkEndX = x1;
+         double darkEndY = y0-(x3-x1)*((y0-y1)/(x3-x2));
+         g2.setPaint(new GradientPaint((float)x3, (float)y0, shades.topLight, (float)darkEndX, (float)darkEndY, shades.topDark));
       }
       g2.fill(bar3dTop);
       g2.setPaint(itemPaint);
@@ -210,6 +229,7 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
        // add an item entity, if this information is being collected
        EntityCollection entities = state.getEntityCollection();
        if (entities != null) {
+           // the entity keeps its shape, so this one can't be reused
            GeneralPath barOutline = new GeneralPath();
            barOutline.moveTo((float) x0, (float) y3);
            barOutline.lineTo((float) x0, (float) y1);
@@ -281,7 +301,22 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
 
    }
 
-   private Color getTopLight(Color primary)
+   /**<!====== getShades =====================================================>
+      Returns the lighter and darker colors used for the faces of bars with
+      the given primary color.  They are derived once for each color.
+   <!=======================================================================>*/
+   private static Shades getShades(Color primary)
+   {
+      Shades shades = SHADES.get(primary);
+      if (shades == null)
+      {
+         shades = new Shades(primary);
+         SHADES.putIfAbsent(primary, shades);
+      }
+      return shades;
+   }
+
+   private static Color getTopLight(Color primary)
    {
       float hsbVals[] = new float[3];
       Color.RGBtoHSB(primary.getRed(), primary.getGreen(), primary.getBlue(), hsbVals);
@@ -290,7 +325,7 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
       return Color.getHSBColor(hsbVals[0], hsbVals[1], hsbVals[2]);
    }
 
-   private Color getTopDark(Color primary)
+   private static Color getTopDark(Color primary)
    {
       float hsbVals[] = new float[3];
       Color.RGBtoHSB(primary.getRed(), primary.getGreen(), primary.getBlue(), hsbVals);
@@ -299,7 +334,7 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
       return Color.getHSBColor(hsbVals[0], hsbVals[1], hsbVals[2]);
    }
 
-   private Color getFrontDark(Color primary)
+   private static Color getFrontDark(Color primary)
    {
       float hsbVals[] = new float[3];
       Color.RGBtoHSB(primary.getRed(), primary.getGreen(), primary.getBlue(), hsbVals);
@@ -308,7 +343,7 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
       return Color.getHSBColor(hsbVals[0], hsbVals[1], hsbVals[2]);
    }
 
-   private Color getSideLight(Color primary)
+   private static Color getSideLight(Color primary)
    {
       float hsbVals[] = new float[3];
       Color.RGBtoHSB(primary.getRed(), primary.getGreen(), primary.getBlue(), hsbVals);
@@ -317,7 +352,7 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
       return Color.getHSBColor(hsbVals[0], hsbVals[1], hsbVals[2]);
    }
 
-   private Color getSideDark(Color primary)
+   private static Color getSideDark(Color primary)
    {
       float hsbVals[] = new float[3];
       Color.RGBtoHSB(primary.getRed(), primary.getGreen(), primary.getBlue(), hsbVals);
@@ -351,4 +386,47 @@ public class OpaqueBarRenderer3D extends BarRenderer3D
       g2.fill(marker);
       g2.setPaint(oldPaint);
    }
-}
\ No newline at end of file
+
+   /**<!=========================================================================>
+      The colors for the faces of the bars of one primary color.
+   <!==========================================================================>*/
+   private static class Shades
+   {
+      private final Color primary;
+      private final Color frontDark;
+      private final Color sideLight;
+      private final Color sideDark;
+      private final Color topLight;
+      private final Color topDark;
+
+      private Shades(Color primary)
+      {
+         this.primary = primary;
+         frontDark = getFrontDark(primary);
+         sideLight = getSideLight(primary);
+         sideDark = getSideDark(primary);
+         topLight = getTopLight(primary);
+         topDark = getTopDark(primary);
+      }
+   }
+
+   /**<!=========================================================================>
+      Renderer state that also holds the shapes reused for drawing each bar
+      of a chart.
+   <!==========================================================================>*/
+   private static class OpaqueState extends CategoryItemRendererState
+   {
+      private final Rectangle2D.Double adjusted = new Rectangle2D.Double();
+      private final Rectangle2D.Double bar = new Rectangle2D.Double();
+      private final Line2D.Double line = new Line2D.Double();
+      private final GeneralPath right = new GeneralPath();
+      private final GeneralPath top = new GeneralPath();
+
+      private OpaqueState(PlotRenderingInfo info, CategoryItemRendererState state)
+      {
+         super(info);
+         // the bar width is all that BarRenderer works out in its state (the plot sets the crosshair state later)
+         setBarWidth(state.getBarWidth());
+      }
+   }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import com.controlj.addon.gwttree.client.TreeEntry;
+import com.controlj.green.addonsupport.access.*;
+import com.controlj.green.addonsupport.access.aspect.TrendSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**<!=========================================================================>
+   Builds the pruned static tree by walking each of the root's children in its
+   own read action on a bounded pool of threads, then hooking the results to
+   the root using the same pruning rule as
+   {@link TrendSparseTreeVisitor#addChild}.  The order of the root's children
+   is the same as for the sequential walk.
+<!==========================================================================>*/
+class ParallelTreeBuilder extends StaticTreeBuilder
+{
+   private final ExecutorService executor;
+
+   ParallelTreeBuilder(int threads)
+   {
+      final AtomicInteger threadNumber = new AtomicInteger();
+      executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory()
+      {
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, "GwtTree-TreeBuilder-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   @Override public TreeEntry build(final SystemConnection connection, final AspectAcceptor<TrendSource> acceptor) throws Exception
+   {
+      // List the root's children.  Equipment directly under the root is cheap, so handle it right here.
+      final List<TopLevelChild> topLevel = new ArrayList<TopLevelChild>();
+      TreeEntry root = connection.runReadAction(new ReadActionResult<TreeEntry>()
+      {
+         public TreeEntry execute(SystemAccess access) throws Exception
+         {
+            Location geoRoot = access.getGeoRoot();
+            for (Location child : geoRoot.getChildren())
+            {
+               if (child.getType() == LocationType.Equipment)
+                  topLevel.add(new TopLevelChild(TreeEntryFactory.createEntry(child, acceptor)));
+               else
+                  topLevel.add(new TopLevelChild(child.getTransientLookupString()));
+            }
+            return TreeEntryFactory.createEntry(geoRoot, acceptor);
+         }
+      });
+
+      // Walk each area on the pool
+      List<Future<TreeEntry>> subtrees = new ArrayList<Future<TreeEntry>>(topLevel.size());
+      for (TopLevelChild child : topLevel)
+         subtrees.add(child.entry != null ? null : executor.submit(new SubtreeWalk(connection, child.path, acceptor)));
+
+      // and merge the results in order
+      try
+      {
+         for (int i = 0; i < topLevel.size(); i++)
+         {
+            Future<TreeEntry> subtree = subtrees.get(i);
+            TreeEntry child = subtree == null ? topLevel.get(i).entry : subtree.get();
+            if (TrendSparseTreeVisitor.isWorthKeeping(child))
+               root.addChild(child);
+         }
+      }
+      catch (ExecutionException e)
+      {
+         cancel(subtrees);
+         Throwable cause = e.getCause();
+         if (cause instanceof Exception)
+            throw (Exception) cause;
+         throw e;
+      }
+      catch (InterruptedException e)
+      {
+         cancel(subtrees);
+         throw e;
+      }
+      return root;
+   }
+
+   private void cancel(List<Future<TreeEntry>> subtrees)
+   {
+      for (Future<TreeEntry> subtree : subtrees)
+         if (subtree != null)
+            subtree.cancel(true);
+   }
+
+   @Override public void shutdown()
+   {
+      executor.shutdownNow();
+   }
+
+   private static class TopLevelChild
+   {
+      private final TreeEntry entry;
+      private final String path;
+
+      private TopLevelChild(TreeEntry entry)
+      {
+         this.entry = entry;
+         this.path = null;
+      }
+
+      private TopLevelChild(String path)
+      {
+         this.entry = null;
+         this.path = path;
+      }
+   }
+
+   /**<!=========================================================================>
+      Walks the sub-tree under one top-level area in its own read action.
+   <!==========================================================================>*/
+   private static class SubtreeWalk implements Callable<TreeEntry>
+   {
+      private final SystemConnection connection;
+      private final String path;
+      private final AspectAcceptor<TrendSource> acceptor;
+
+      private SubtreeWalk(SystemConnection connection, String path, AspectAcceptor<TrendSource> acceptor)
+      {
+         this.connection = connection;
+         this.path = path;
+         this.acceptor = acceptor;
+      }
+
+      public TreeEntry call() throws Exception
+      {
+         return connection.runReadAction(new ReadActionResult<TreeEntry>()
+         {
+            public TreeEntry execute(SystemAccess access) throws Exception
+            {
+               Location area = access.getTree(SystemTree.Geographic).resolve(path);
+               return access.visit(area, new TrendSparseTreeVisitor(acceptor));
+            }
+         });
+      }
+   }
+}
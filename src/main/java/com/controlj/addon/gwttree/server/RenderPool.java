@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**<!=========================================================================>
+   Admission control for the expensive part of graph requests (fetching the
+   trend data and rendering the chart).  The work is run on a fixed number of
+   threads with a bounded queue in front of them, and each operator may only
+   have a limited number of requests queued or running at once.  Requests
+   beyond those limits are rejected straight away (and should be answered
+   with a 503) instead of piling up on the container's threads.
+<!==========================================================================>*/
+public class RenderPool
+{
+   public static final int DEFAULT_THREADS = 4;
+   public static final int DEFAULT_QUEUE_DEPTH = 16;
+   public static final int DEFAULT_PER_USER_LIMIT = 3;
+   public static final int DEFAULT_RETRY_AFTER = 5;
+
+   private static final RenderPool instance = new RenderPool();
+
+   private ThreadPoolExecutor executor;
+   private int perUserLimit = DEFAULT_PER_USER_LIMIT;
+   private int retryAfter = DEFAULT_RETRY_AFTER;
+   private final Map<String, Integer> inFlight = new HashMap<String, Integer>();
+   private final AtomicLong queueRejections = new AtomicLong();
+   private final AtomicLong userRejections = new AtomicLong();
+
+   private RenderPool()
+   {
+      configure(DEFAULT_THREADS, DEFAULT_QUEUE_DEPTH, DEFAULT_PER_USER_LIMIT, DEFAULT_RETRY_AFTER);
+   }
+
+   public static RenderPool getInstance() { return instance; }
+
+   /**<!====== configure =====================================================>
+      Replaces the thread pool.  Work already submitted to the old pool is
+      still completed.
+      <!      Name          Description>
+      @param  threads       number of requests worked on at once.
+      @param  queueDepth    number of requests that may wait for a thread.
+      @param  perUserLimit  number of requests one operator may have waiting
+                            or being worked on.
+      @param  retryAfter    seconds a rejected client is asked to wait.
+   <!=======================================================================>*/
+   public synchronized void configure(int threads, int queueDepth, int perUserLimit, int retryAfter)
+   {
+      if (executor != null)
+         executor.shutdown();
+
+      final AtomicInteger threadNumber = new AtomicInteger();
+      executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS,
+                                        new ArrayBlockingQueue<Runnable>(Math.max(1, queueDepth)),
+                                        new ThreadFactory()
+                                        {
+                                           public Thread newThread(Runnable runnable)
+                                           {
+                                              Thread thread = new Thread(runnable, "GwtTree-Render-" + threadNumber.incrementAndGet());
+                                              thread.setDaemon(true);
+                                              return thread;
+                                           }
+                                        });
+      this.perUserLimit = Math.max(1, perUserLimit);
+      this.retryAfter = Math.max(1, retryAfter);
+   }
+
+   public synchronized void shutdown()
+   {
+      executor.shutdownNow();
+   }
+
+   /**<!====== execute =======================================================>
+      Runs the task on the pool and waits for its result.
+      <!      Name          Description>
+      @param  user          the operator making the request.
+      @param  task          the work to do.
+      @throws RejectedException if the operator already has too many requests,
+                            or the queue is full.
+   <!=======================================================================>*/
+   public <T> T execute(String user, Callable<T> task) throws RejectedException, InterruptedException, ExecutionException
+   {
+      String key = user == null ? "" : user;
+      if (!acquire(key))
+      {
+         userRejections.incrementAndGet();
+         throw new RejectedException("Too many graph requests for " + key, retryAfter);
+      }
+
+      try
+      {
+         Future<T> future;
+         try
+         {
+            future = getExecutor().submit(task);
+         }
+         catch (RejectedExecutionException e)
+         {
+            queueRejections.incrementAndGet();
+            throw new RejectedException("Too many graph requests", retryAfter);
+         }
+
+         try
+         {
+            return future.get();
+         }
+         catch (InterruptedException e)
+         {
+            future.cancel(true);
+            throw e;
+         }
+      }
+      finally
+      {
+         release(key);
+      }
+   }
+
+   private synchronized ThreadPoolExecutor getExecutor()
+   {
+      return executor;
+   }
+
+   private synchronized boolean acquire(String user)
+   {
+      Integer count = inFlight.get(user);
+      int newCount = count == null ? 1 : count + 1;
+      if (newCount > perUserLimit)
+         return false;
+      inFlight.put(user, newCount);
+      return true;
+   }
+
+   private synchronized void release(String user)
+   {
+      Integer count = inFlight.get(user);
+      if (count == null || count <= 1)
+         inFlight.remove(user);
+      else
+         inFlight.put(user, count - 1);
+   }
+
+   public synchronized int getActiveCount() { return executor.getActiveCount(); }
+   public synchronized int getQueueDepth() { return executor.getQueue().size(); }
+   public long getQueueRejections() { return queueRejections.get(); }
+   public long getUserRejections() { return userRejections.get(); }
+
+   /**<!=========================================================================>
+      Thrown when a request is not admitted.  Holds how long (in seconds) the
+      client should wait before trying again.
+   <!==========================================================================>*/
+   public static class RejectedException extends Exception
+   {
+      private final int retryAfter;
+
+      public RejectedException(String message, int retryAfter)
+      {
+         super(message);
+         this.retryAfter = retryAfter;
+      }
+
+      public int getRetryAfter() { return retryAfter; }
+   }
+}
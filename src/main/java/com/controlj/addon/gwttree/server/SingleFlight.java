@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**<!=========================================================================>
+   Coalesces concurrent identical work: while a task for a key is running,
+   other callers with the same key wait for it and share its result (or
+   exception) instead of doing the same work again.  Nothing is kept once
+   the task is done, so this is not a cache.
+<!==========================================================================>*/
+class SingleFlight<K, V>
+{
+   private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+   private final AtomicLong shared = new AtomicLong();
+
+   /**<!====== execute =======================================================>
+      Runs the task in the calling thread, or waits for the task already
+      running for the same key.
+      @throws ExecutionException with the exception thrown by the task.
+   <!=======================================================================>*/
+   public V execute(K key, Callable<V> task) throws InterruptedException, ExecutionException
+   {
+      FutureTask<V> future = new FutureTask<V>(task);
+      FutureTask<V> running = inFlight.putIfAbsent(key, future);
+      if (running != null)
+      {
+         shared.incrementAndGet();
+         return running.get();
+      }
+
+      try
+      {
+         future.run();
+         return future.get();
+      }
+      finally
+      {
+         inFlight.remove(key, future);
+      }
+   }
+
+   /**<!====== getSharedCount ================================================>
+      Returns how many callers have shared another caller's result.
+   <!=======================================================================>*/
+   public long getSharedCount()
+   {
+      return shared.get();
+   }
+}
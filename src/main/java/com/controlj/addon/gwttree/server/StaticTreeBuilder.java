@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import com.controlj.addon.gwttree.client.TreeEntry;
+import com.controlj.green.addonsupport.access.*;
+import com.controlj.green.addonsupport.access.aspect.TrendSource;
+
+/**<!=========================================================================>
+   Builds the pruned static tree (see {@link TrendSparseTreeVisitor}).  Two
+   implementations are available so they can be compared: the sequential
+   builder walks the whole tree in a single read action, while the
+   {@link ParallelTreeBuilder} walks each top-level area in its own read action
+   on a pool of threads.
+<!==========================================================================>*/
+abstract class StaticTreeBuilder
+{
+   public static final String SEQUENTIAL = "sequential";
+   public static final String PARALLEL = "parallel";
+
+   /**<!====== create ========================================================>
+      Creates the builder for the given mode.
+      <!      Name       Description>
+      @param  mode       either {@link #SEQUENTIAL} or {@link #PARALLEL}.
+      @param  threads    the number of threads used by a parallel builder.
+   <!=======================================================================>*/
+   public static StaticTreeBuilder create(String mode, int threads)
+   {
+      if (PARALLEL.equalsIgnoreCase(mode))
+         return new ParallelTreeBuilder(threads);
+      return new SequentialTreeBuilder();
+   }
+
+   public abstract TreeEntry build(SystemConnection connection, AspectAcceptor<TrendSource> acceptor) throws Exception;
+
+   /**<!====== shutdown ======================================================>
+      Releases any resources (threads) held by the builder.
+   <!=======================================================================>*/
+   public void shutdown() { }
+
+   private static class SequentialTreeBuilder extends StaticTreeBuilder
+   {
+      @Override public TreeEntry build(SystemConnection connection, final AspectAcceptor<TrendSource> acceptor) throws Exception
+      {
+         return connection.runReadAction(new ReadActionResult<TreeEntry>()
+         {
+            public TreeEntry execute(SystemAccess access) throws Exception
+            {
+               return access.visit(access.getGeoRoot(), new TrendSparseTreeVisitor(acceptor));
+            }
+         });
+      }
+   }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import com.controlj.addon.gwttree.client.CompactTree;
+import com.controlj.addon.gwttree.client.TreeEntry;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**<!=========================================================================>
+   Cache of the pruned static trees built by {@link TreeServiceImpl}.  Building
+   a static tree walks the whole geographic tree, so the results are kept here
+   keyed by the (normalized) set of trend source names used as a filter and,
+   when operators can see different parts of the system, by the operator.
+   <p/>
+   Entries expire after a configurable time to live, and the least recently
+   used entry is evicted when the cache grows past its size limit.  The cached
+   trees are shared between requests, so they must not be modified after they
+   have been added.
+   <p/>
+   The {@link CompactTree} form of each tree is encoded the first time it is
+   asked for and kept with the tree, so it expires (or is invalidated) along
+   with it.
+   <p/>
+   Requests that miss the cache for the same tree at the same time share a
+   single build (see {@link #getOrBuild}).
+<!==========================================================================>*/
+public class StaticTreeCache
+{
+   public static final long DEFAULT_TIME_TO_LIVE = 10 * 60 * 1000L;
+   public static final int DEFAULT_MAX_ENTRIES = 50;
+
+   private static final StaticTreeCache instance = new StaticTreeCache();
+
+   private long timeToLive = DEFAULT_TIME_TO_LIVE;
+   private int maxEntries = DEFAULT_MAX_ENTRIES;
+   private boolean perOperator = true;
+   private final LinkedHashMap<Key, CachedTree> trees = new LinkedHashMap<Key, CachedTree>(16, 0.75f, true)
+   {
+      @Override protected boolean removeEldestEntry(Map.Entry<Key, CachedTree> eldest)
+      {
+         return size() > maxEntries;
+      }
+   };
+   private final SingleFlight<Key, TreeEntry> builds = new SingleFlight<Key, TreeEntry>();
+
+   public static StaticTreeCache getInstance() { return instance; }
+
+   /**<!====== configure =====================================================>
+      Changes the cache settings.  A time to live or size of zero (or less)
+      disables the cache.
+      <!      Name          Description>
+      @param  timeToLive    how long (in milliseconds) a tree stays valid.
+      @param  maxEntries    the maximum number of trees kept.
+      @param  perOperator   true if each operator gets their own trees (required
+                            when operators have different geographic privileges).
+   <!=======================================================================>*/
+   public synchronized void configure(long timeToLive, int maxEntries, boolean perOperator)
+   {
+      this.timeToLive = timeToLive;
+      this.maxEntries = maxEntries;
+      this.perOperator = perOperator;
+      trees.clear();
+   }
+
+   public synchronized boolean isEnabled()
+   {
+      return timeToLive > 0 && maxEntries > 0;
+   }
+
+   /**<!====== get ===========================================================>
+      Returns the cached tree for the given operator and filter, or null if
+      there is no such tree or it has expired.
+   <!=======================================================================>*/
+   public synchronized TreeEntry get(String operator, String[] sourceNames)
+   {
+      CachedTree cached = getCachedTree(operator, sourceNames);
+      return cached == null ? null : cached.root;
+   }
+
+   /**<!====== getCompact ====================================================>
+      Returns the cached tree for the given operator and filter in its compact
+      form, or null if there is no such tree or it has expired.  The tree is
+      only encoded once, however often it is asked for.
+   <!=======================================================================>*/
+   public CompactTree getCompact(String operator, String[] sourceNames)
+   {
+      CachedTree cached;
+      synchronized (this)
+      {
+         cached = getCachedTree(operator, sourceNames);
+      }
+      return cached == null ? null : cached.getCompact();   // encoded outside the cache's lock
+   }
+
+   /**<!====== getOrBuild ====================================================>
+      Returns the cached tree for the given operator and filter, building and
+      adding it if there is none.  While a tree is being built, other callers
+      that need the same tree wait for it instead of building it again.  Trees
+      are shared this way even when the cache is disabled.
+      <!      Name          Description>
+      @param  builder       builds the tree (in the calling thread).
+   <!=======================================================================>*/
+   public TreeEntry getOrBuild(final String operator, final String[] sourceNames, final Callable<TreeEntry> builder) throws Exception
+   {
+      Key key;
+      synchronized (this)
+      {
+         key = createKey(operator, sourceNames);
+      }
+
+      try
+      {
+         return builds.execute(key, new Callable<TreeEntry>()
+         {
+            public TreeEntry call() throws Exception
+            {
+               TreeEntry root = get(operator, sourceNames);   // may have been built while this caller waited
+               if (root == null)
+               {
+                  root = builder.call();
+                  put(operator, sourceNames, root);
+               }
+               return root;
+            }
+         });
+      }
+      catch (ExecutionException e)
+      {
+         Throwable cause = e.getCause();
+         if (cause instanceof Exception)
+            throw (Exception) cause;
+         if (cause instanceof Error)
+            throw (Error) cause;
+         throw e;
+      }
+   }
+
+   /**<!====== getSharedBuildCount ===========================================>
+      Returns how many requests have shared a tree built for another request.
+   <!=======================================================================>*/
+   public long getSharedBuildCount()
+   {
+      return builds.getSharedCount();
+   }
+
+   public synchronized void put(String operator, String[] sourceNames, TreeEntry root)
+   {
+      if (isEnabled())
+         trees.put(createKey(operator, sourceNames), new CachedTree(root));
+   }
+
+   /**<!====== invalidate ====================================================>
+      Discards all cached trees.  Used when the geographic tree or trend
+      sources are known to have changed.
+   <!=======================================================================>*/
+   public synchronized void invalidate()
+   {
+      trees.clear();
+   }
+
+   public synchronized int size()
+   {
+      return trees.size();
+   }
+
+   private CachedTree getCachedTree(String operator, String[] sourceNames)
+   {
+      Key key = createKey(operator, sourceNames);
+      CachedTree cached = trees.get(key);
+      if (cached == null)
+         return null;
+
+      if (System.currentTimeMillis() - cached.created > timeToLive)
+      {
+         trees.remove(key);
+         return null;
+      }
+      return cached;
+   }
+
+   private Key createKey(String operator, String[] sourceNames)
+   {
+      Set<String> names = new TreeSet<String>();
+      for (String sourceName : sourceNames)
+      {
+         String name = sourceName.trim();
+         if (name.length() > 0)
+            names.add(name);
+      }
+      return new Key(perOperator ? operator : null, names);
+   }
+
+   private static class CachedTree
+   {
+      private final TreeEntry root;
+      private final long created = System.currentTimeMillis();
+      private CompactTree compact;
+
+      private CachedTree(TreeEntry root)
+      {
+         this.root = root;
+      }
+
+      private synchronized CompactTree getCompact()
+      {
+         if (compact == null)
+            compact = CompactTree.encode(root);
+         return compact;
+      }
+   }
+
+   private static class Key
+   {
+      private final String operator;
+      private final Set<String> sourceNames;
+
+      private Key(String operator, Set<String> sourceNames)
+      {
+         this.operator = operator;
+         this.sourceNames = sourceNames;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (this == o) return true;
+         if (o == null || getClass() != o.getClass()) return false;
+
+         Key key = (Key) o;
+
+         if (operator != null ? !operator.equals(key.operator) : key.operator != null) return false;
+         if (!sourceNames.equals(key.sourceNames)) return false;
+
+         return true;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int result = operator != null ? operator.hashCode() : 0;
+         result = 31 * result + sourceNames.hashCode();
+         return result;
+      }
+   }
+}
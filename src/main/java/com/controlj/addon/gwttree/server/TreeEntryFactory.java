@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import com.controlj.addon.gwttree.client.TreeEntry;
+import com.controlj.green.addonsupport.access.AspectAcceptor;
+import com.controlj.green.addonsupport.access.Location;
+import com.controlj.green.addonsupport.access.LocationType;
+import com.controlj.green.addonsupport.access.aspect.AnalogTrendSource;
+import com.controlj.green.addonsupport.access.aspect.TrendSource;
+
+import java.util.Collection;
+
+/**<!=========================================================================>
+   Creates the {@link TreeEntry} for a single location.  Equipment entries are
+   given the names of their analog trend sources accepted by the acceptor.
+<!==========================================================================>*/
+class TreeEntryFactory
+{
+   private TreeEntryFactory() { }
+
+   public static TreeEntry createEntry(Location location, AspectAcceptor<TrendSource> acceptor)
+   {
+      TreeEntry treeEntry = new TreeEntry();
+      treeEntry.setName(location.getDisplayName());
+      treeEntry.setPath(location.getTransientLookupString());
+      if (location.getType() == LocationType.Equipment)
+      {
+         treeEntry.setAllowsChildren(false);
+         Collection<AnalogTrendSource> sources = location.find(AnalogTrendSource.class, acceptor);
+         for (TrendSource source : sources)
+            treeEntry.addTrendSource(TrendSourcePool.get(source.getLocation().getReferenceName()));
+      }
+      return treeEntry;
+   }
+}
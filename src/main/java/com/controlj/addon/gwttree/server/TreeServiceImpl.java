@@ -22,15 +22,18 @@
 
 package com.controlj.addon.gwttree.server;
 
+import com.controlj.addon.gwttree.client.CompactTree;
 import com.controlj.addon.gwttree.client.TreeEntry;
 import com.controlj.addon.gwttree.client.TreeService;
 import com.controlj.green.addonsupport.access.*;
-import com.controlj.green.addonsupport.access.aspect.AnalogTrendSource;
 import com.controlj.green.addonsupport.access.aspect.TrendSource;
 import com.controlj.green.addonsupport.access.util.Acceptors;
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**<!=========================================================================>
    The server side part of the TreeService.  See {@link TreeService}
@@ -39,76 +42,266 @@ import java.util.*;
 <!==========================================================================>*/
 public class TreeServiceImpl extends RemoteServiceServlet implements TreeService
 {
-   private AspectAcceptor<TrendSource> acceptor;
+   private static final String DYNAMIC_SOURCE_NAMES_ATTRIBUTE = "gwttree.dynamicSourceNames";
+   private static final int MAX_PREFETCH_DEPTH = 4;
+
+   private StaticTreeBuilder builder;
+
+   /**<!====== init ==========================================================>
+      Configures the {@link StaticTreeCache} from the (optional) init parameters
+      "staticTreeCacheTTL" (in seconds), "staticTreeCacheSize" and
+      "staticTreeCachePerOperator", and the {@link StaticTreeBuilder} from
+      "staticTreeBuildMode" ("sequential" or "parallel") and
+      "staticTreeBuildThreads".  The {@link TrendSourceIndex} is enabled unless
+      "trendIndexEnabled" is false.  It is first built when a filtered static
+      tree is first asked for, then rebuilt every "trendIndexRefresh" seconds,
+      and is not used once it is older than "trendIndexMaxAge" seconds.
+      <p/>
+      If "warmUpStaticTree" is true, the unfiltered static tree is built in
+      the background so the first request does not pay for loading the
+      classes and connecting to the system.  The tree is only cached if it
+      can be shared (that is, "staticTreeCachePerOperator" is false).
+   <!=======================================================================>*/
+   @Override public void init() throws ServletException
+   {
+      super.init();
+      long ttl = InitParameters.getLong(getServletConfig(), "staticTreeCacheTTL", StaticTreeCache.DEFAULT_TIME_TO_LIVE / 1000);
+      int size = InitParameters.getInt(getServletConfig(), "staticTreeCacheSize", StaticTreeCache.DEFAULT_MAX_ENTRIES);
+      boolean perOperator = InitParameters.getBoolean(getServletConfig(), "staticTreeCachePerOperator", true);
+      StaticTreeCache.getInstance().configure(ttl * 1000, size, perOperator);
+
+      String mode = InitParameters.getString(getServletConfig(), "staticTreeBuildMode", StaticTreeBuilder.SEQUENTIAL);
+      int threads = InitParameters.getInt(getServletConfig(), "staticTreeBuildThreads", Runtime.getRuntime().availableProcessors());
+      builder = StaticTreeBuilder.create(mode, threads);
+
+      if (InitParameters.getBoolean(getServletConfig(), "trendIndexEnabled", true))
+      {
+         long refresh = InitParameters.getLong(getServletConfig(), "trendIndexRefresh", TrendSourceIndex.DEFAULT_REFRESH_PERIOD / 1000);
+         long maxAge = InitParameters.getLong(getServletConfig(), "trendIndexMaxAge", TrendSourceIndex.DEFAULT_MAX_AGE / 1000);
+         TrendSourceIndex.getInstance().start(getServletContext(), refresh * 1000, maxAge * 1000);
+      }
+
+      if (InitParameters.getBoolean(getServletConfig(), "warmUpStaticTree", false))
+         startWarmUp(!perOperator);
+   }
+
+   private void startWarmUp(final boolean cacheTree)
+   {
+      Thread thread = new Thread(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               long start = System.currentTimeMillis();
+               SystemConnection connection = DirectAccess.getDirectAccess().getRootSystemConnection();
+               TreeEntry root = builder.build(connection, createAcceptor(new String[0]));
+               if (cacheTree)
+                  StaticTreeCache.getInstance().put(null, new String[0], root);
+               log("Static tree warm-up took " + (System.currentTimeMillis() - start) + " ms");
+            }
+            catch (Exception e)
+            {
+               log("Static tree warm-up failed", e);
+            }
+         }
+      }, "GwtTree-WarmUp");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      thread.start();
+   }
+
+   @Override public void destroy()
+   {
+      TrendSourceIndex.getInstance().stop();
+      builder.shutdown();
+      super.destroy();
+   }
 
    public TreeEntry getDynamicTreeRootEntry(String[] sourceNames) throws Exception
    {
-      acceptor = createAcceptor(sourceNames);
+      return getDynamicTreeRootEntry(sourceNames, 0);
+   }
+
+   public List<TreeEntry> getDynamicTreeChildren(TreeEntry parent) throws Exception
+   {
+      return getDynamicTreeChildren(parent, 0);
+   }
+
+   /**<!====== getDynamicTreeRootEntry =======================================>
+      Returns the root entry of the dynamic tree, along with prefetchDepth
+      levels of its descendants (at most MAX_PREFETCH_DEPTH).
+   <!=======================================================================>*/
+   public TreeEntry getDynamicTreeRootEntry(String[] sourceNames, final int prefetchDepth) throws Exception
+   {
+      sourceNames = normalizeSourceNames(sourceNames);
+      // remember the filter for the requests for children that follow
+      getThreadLocalRequest().getSession().setAttribute(DYNAMIC_SOURCE_NAMES_ATTRIBUTE, sourceNames);
+      final DynamicTreeFilter filter = new DynamicTreeFilter(sourceNames);
       SystemConnection connection = DirectAccess.getDirectAccess().getUserSystemConnection(getThreadLocalRequest());
       return connection.runReadAction(new ReadActionResult<TreeEntry>()
       {
          public TreeEntry execute(SystemAccess access) throws Exception
          {
-            return createEntry(access.getGeoRoot());
+            Location root = access.getGeoRoot();
+            TreeEntry rootEntry = filter.createEntry(root);
+            prefetchChildren(rootEntry, root, filter, limitPrefetchDepth(prefetchDepth));
+            return rootEntry;
          }
       });
    }
 
-   public List<TreeEntry> getDynamicTreeChildren(final TreeEntry parent) throws Exception
+   /**<!====== getDynamicTreeChildren ========================================>
+      Returns the children of the given parent.  As for the root, prefetchDepth
+      counts the levels loaded below the parent, so the children themselves
+      are the first of them (and are always returned, even for 0).
+   <!=======================================================================>*/
+   public List<TreeEntry> getDynamicTreeChildren(final TreeEntry parent, final int prefetchDepth) throws Exception
    {
+      final DynamicTreeFilter filter = getDynamicTreeFilter();
       SystemConnection connection = DirectAccess.getDirectAccess().getUserSystemConnection(getThreadLocalRequest());
       return connection.runReadAction(new ReadActionResult<List<TreeEntry>>()
       {
          public List<TreeEntry> execute(SystemAccess access) throws Exception
          {
             Location parentLoc = access.getTree(SystemTree.Geographic).resolve(parent.getPath());
-            Collection<Location> children = parentLoc.getChildren();
-            List<TreeEntry> entries = new ArrayList<TreeEntry>(children.size());
-            for (Location child : children)
-               entries.add(createEntry(child));
-            return entries;
+            return createChildEntries(parentLoc, filter, prefetchBelowChildren(prefetchDepth));
          }
       });
    }
 
-   private AspectAcceptor<TrendSource> createAcceptor(String[] sourceNames)
+   /**<!====== getDynamicTreeChildrenBatch ===================================>
+      Returns the children of several parents at once (loading prefetchDepth
+      levels below each parent, as for {@link #getDynamicTreeChildren}).  All the parents are
+      resolved inside a single read action, which is much cheaper than one
+      request (and read action) per parent.  A parent that cannot be loaded
+      (for example, because it has been deleted) is logged and maps to null,
+      so it does not stop the others from loading.
+   <!=======================================================================>*/
+   public Map<String, List<TreeEntry>> getDynamicTreeChildrenBatch(final List<String> parentPaths, final int prefetchDepth) throws Exception
    {
-      if (sourceNames.length == 0)
-         return Acceptors.enabledTrendSource();
+      final DynamicTreeFilter filter = getDynamicTreeFilter();
+      SystemConnection connection = DirectAccess.getDirectAccess().getUserSystemConnection(getThreadLocalRequest());
+      return connection.runReadAction(new ReadActionResult<Map<String, List<TreeEntry>>>()
+      {
+         public Map<String, List<TreeEntry>> execute(SystemAccess access) throws Exception
+         {
+            Map<String, List<TreeEntry>> result = new HashMap<String, List<TreeEntry>>();
+            for (String path : parentPaths)
+            {
+               try
+               {
+                  Location parentLoc = access.getTree(SystemTree.Geographic).resolve(path);
+                  result.put(path, createChildEntries(parentLoc, filter, prefetchBelowChildren(prefetchDepth)));
+               }
+               catch (Exception e)
+               {
+                  log("Could not load the children of " + path, e);
+                  result.put(path, null);
+               }
+            }
+            return result;
+         }
+      });
+   }
 
-      return Acceptors.enabledTrendSourceByName(sourceNames);
+   private static int limitPrefetchDepth(int prefetchDepth)
+   {
+      return Math.max(0, Math.min(prefetchDepth, MAX_PREFETCH_DEPTH));
+   }
+
+   // The levels to prefetch below the children of a parent, which are the first level loaded
+   private static int prefetchBelowChildren(int prefetchDepth)
+   {
+      return Math.max(0, limitPrefetchDepth(prefetchDepth) - 1);
    }
 
-   private TreeEntry createEntry(Location location)
+   private static List<TreeEntry> createChildEntries(Location parentLoc, DynamicTreeFilter filter, int prefetchDepth)
    {
-      TreeEntry treeEntry = new TreeEntry();
-      treeEntry.setName(location.getDisplayName());
-      treeEntry.setPath(location.getTransientLookupString());
-      if (location.getType() == LocationType.Equipment)
+      Collection<Location> children = parentLoc.getChildren();
+      List<TreeEntry> entries = new ArrayList<TreeEntry>(children.size());
+      for (Location child : children)
       {
-         treeEntry.setAllowsChildren(false);
-         Collection<AnalogTrendSource> sources = location.find(AnalogTrendSource.class, acceptor);
-         for (TrendSource source : sources)
-         {
-            TreeEntry.TrendSource treeSource = new TreeEntry.TrendSource();
-            treeSource.setName(source.getLocation().getReferenceName());
-            treeEntry.addTrendSource(treeSource);
-         }
+         TreeEntry entry = filter.createEntry(child);
+         prefetchChildren(entry, child, filter, prefetchDepth);
+         entries.add(entry);
+      }
+      return entries;
+   }
+
+   private static void prefetchChildren(TreeEntry entry, Location location, DynamicTreeFilter filter, int prefetchDepth)
+   {
+      boolean knownEmpty = entry.isDescendantMatchKnown() && !entry.hasMatchingDescendants();
+      if (prefetchDepth > 0 && entry.isAllowsChildren() && !knownEmpty)
+      {
+         for (TreeEntry child : createChildEntries(location, filter, prefetchDepth - 1))
+            entry.addChild(child);
+         entry.setChildrenLoaded(true);
+      }
+   }
+
+   private DynamicTreeFilter getDynamicTreeFilter()
+   {
+      String[] sourceNames = (String[]) getThreadLocalRequest().getSession().getAttribute(DYNAMIC_SOURCE_NAMES_ATTRIBUTE);
+      return new DynamicTreeFilter(sourceNames == null ? new String[0] : sourceNames);
+   }
+
+   /**<!====== normalizeSourceNames ==========================================>
+      Returns the given trend source names trimmed, without empty names or
+      duplicates, and sorted.  The same names are then used for the cache
+      key, the acceptor and the {@link TrendSourceIndex}, so they all agree
+      on what the filter is.
+   <!=======================================================================>*/
+   private static String[] normalizeSourceNames(String[] sourceNames)
+   {
+      Set<String> names = new TreeSet<String>();
+      for (String sourceName : sourceNames)
+      {
+         String name = sourceName.trim();
+         if (name.length() > 0)
+            names.add(name);
       }
-      return treeEntry;
+      return names.toArray(new String[names.size()]);
+   }
+
+   private static AspectAcceptor<TrendSource> createAcceptor(String[] sourceNames)
+   {
+      if (sourceNames.length == 0)
+         return Acceptors.enabledTrendSource();
+
+      return Acceptors.enabledTrendSourceByName(sourceNames);
    }
 
+   /**<!====== getStaticTreeRootEntry ========================================>
+      Returns the pruned static tree for the given trend source names.  Trees
+      are served from the {@link StaticTreeCache} when possible.  On a cache
+      miss, a filtered tree is built from the {@link TrendSourceIndex} if it is
+      fresh, otherwise by walking the whole geographic tree.  Requests that
+      miss at the same time share one build.
+   <!=======================================================================>*/
    public TreeEntry getStaticTreeRootEntry(String[] sourceNames) throws Exception
    {
-      acceptor = createAcceptor(sourceNames);
+      final String[] names = normalizeSourceNames(sourceNames);
+      final AspectAcceptor<TrendSource> staticAcceptor = createAcceptor(names);
       try
       {
-         SystemConnection connection = DirectAccess.getDirectAccess().getUserSystemConnection(getThreadLocalRequest());
-         return connection.runReadAction(new ReadActionResult<TreeEntry>()
+         StaticTreeCache cache = StaticTreeCache.getInstance();
+         final HttpServletRequest request = getThreadLocalRequest();
+         TreeEntry root = cache.get(request.getRemoteUser(), names);
+         if (root != null)
+            return root;
+
+         return cache.getOrBuild(request.getRemoteUser(), names, new Callable<TreeEntry>()
          {
-            public TreeEntry execute(SystemAccess access) throws Exception
+            public TreeEntry call() throws Exception
             {
-               return access.visit(access.getGeoRoot(), new TrendSparseTreeVisitor());
+               SystemConnection connection = DirectAccess.getDirectAccess().getUserSystemConnection(request);
+               TreeEntry root = null;
+               if (names.length > 0)
+                  root = TrendSourceIndex.getInstance().buildTree(connection, names);
+               if (root == null)
+                  root = builder.build(connection, staticAcceptor);
+               return root;
             }
          });
       }
@@ -119,128 +312,52 @@ public class TreeServiceImpl extends RemoteServiceServlet implements TreeService
       }
    }
 
+   /**<!====== getCompactStaticTree ==========================================>
+      Returns the same tree as {@link #getStaticTreeRootEntry}, in the
+      {@link CompactTree} form that is much smaller to send.  The compact form
+      is cached along with the tree, so a cached tree is not encoded again.
+   <!=======================================================================>*/
+   public CompactTree getCompactStaticTree(String[] sourceNames) throws Exception
+   {
+      sourceNames = normalizeSourceNames(sourceNames);
+      StaticTreeCache cache = StaticTreeCache.getInstance();
+      String operator = getThreadLocalRequest().getRemoteUser();
+      CompactTree compact = cache.getCompact(operator, sourceNames);
+      if (compact != null)
+         return compact;
+
+      TreeEntry root = getStaticTreeRootEntry(sourceNames);   // builds and caches the tree
+      compact = cache.getCompact(operator, sourceNames);
+      return compact != null ? compact : CompactTree.encode(root);   // not cached when the cache is disabled
+   }
+
    /**<!=========================================================================>
-      Implements a TreeVisitor to build the TreeEntries that we need for
-      creating the GWT tree.  This visitor filters out all sub-trees that
-      do not contain equipment with trend sources named <trendSourceName>
-      (the only argument to the constructor).
-      <p/>
-      To see this algorithm work, imagine the following geographic tree
-      (equipment marked with a star have enabled trend sources that match
-      our given reference name):
-      <pre>
-                          system
-                        /   |   \
-                      /     |    \
-                   area1   eq2   area3
-                   /   \         /   \
-                  /     \       /     \
-               area4    eq5*  eq6*   area7
-               /   \
-             eq8   eq9
-
-      This results in the following chain of calls:
-
-         1) visit(null, system) --> returns a TreeEntry(system)
-         2) visit(TE-system, area1) --> returns a TreeEntry(area1)
-         3) visit(TE-area1, area4) --> returns a TreeEntry(area4)
-         4) visitEquipment(TE-area4, eq8) --> returns a null because
-            eq8 does not have a star
-         5) Because we returned a null for eq8, addChild is not called
-            even though we reached the bottom of the tree
-         6) visitEquipment(TE-area4, eq9) --> returns a null because
-            eq9 does not have a star
-         7) Just like step 5, addChild is not called for eq9
-         8) addChild(TE-area1, TE-area4) --> because TE-area4 is not
-            an equipment TE and because it has not children, do not
-            add it to TE-area1's list of children
-         9) visitEquipment(TE-area1, eq5) --> eq5 has a trend source
-            that we care about, so return TreeEntry(eq5)
-        10) addChild(TE-area1, TE-eq5) --> because TE-eq5 is an
-            equipment TE, add it to TE-area1's list of children
-        11) addChild(TE-system, TE-area1) --> TE-area1 now has children,
-            so it is added to TE-system's children.
-        12) visitEquipment(TE-system, eq2) --> returns null (eq2 does
-            not have a star)
-        13) Does not call addChild for eq2 because of the null return.
-        14) visit(TE-system, area3) --> returns a TreeEntry(area3)
-        15) visitEquipment(TE-area3, eq6) --> eq6 is starred, so
-            returns a TreeEntry(eq6)
-        16) addChild(TE-area3, TE-eq6) --> add TE-eq6 to TE-area3's
-            children
-        17) visit(TE-area3, area7) --> returns a TreeEntry(area7)
-        18) addChild(TE-area3, TE-area7) --> TE-area7 has no children
-            so it is not added to TE-area3's children.
-        19) addChild(TE-system, TE-area3) --> TE-area3 has a child, so
-            it gets added to TE-system's children.
-
-      This ends up resulting in this tree (which has pruned all the
-      uninteresting parts out):
-                        TE-system
-                        /       \
-                     area1     area3
-                       |         |
-                      eq5*      eq6*
-      </pre>
+      The trend source filter used for the dynamic tree.  Besides the usual
+      trend sources, entries for areas are given a hint (from the
+      {@link TrendSourceIndex}) of whether anything below them matches the
+      filter, so the client doesn't offer to expand empty branches.
    <!==========================================================================>*/
-   private class TrendSparseTreeVisitor extends TreeVisitor<TreeEntry>
-   {
-      /**<!====== visitEquipment ================================================>
-         Specially handle any equipment that we find.  In this case, we
-         want to find if the equipment has any trend sources with the
-         given name.  If not, return a null which tells the
-         {@link SystemAccess#visit(Location, TreeVisitor)} method to stop
-         walking this branch of the tree, and to not call {@link #addChild}.
-         <!      Name       Description>
-         @param  parent     the parent TreeEntry for this location.
-         @param  eq         the equipment location being visited.
-         @return the TreeEntry for this equipment, or null if the equipment
-                 does not contain any trend sources of interest.
-      <!=======================================================================>*/
-      @Override public TreeEntry visitEquipment(TreeEntry parent, Location eq)
-      {
-         TreeEntry entry = createEntry(eq);
-         return entry.hasTrendSources() ? entry : null;
-      }
+   private static class DynamicTreeFilter
+   {
+      private final String[] sourceNames;
+      private final AspectAcceptor<TrendSource> acceptor;
 
-      /**<!====== visit =========================================================>
-         Since we are walking the geographic tree, we can only encounter
-         System, Area, and Equipment locations (we are not visiting microblocks
-         or lower so those are not possibilities).  Since we have a special method
-         for handling Equipment type locations, we only have to worry about
-         System and Area type locations here.  For those, we'll just always create
-         a TreeEntry object.  Later, when {@link #addChild} gets called we'll decide
-         whether we want to keep these TreeEntries or not.
-         <!      Name       Description>
-         @param  parent     the parent location's TreeEntry.
-         @param  location   the location being visited.
-         @return the new TreeEntry for this location.
-      <!=======================================================================>*/
-      @Override public TreeEntry visit(TreeEntry parent, Location location)
+      private DynamicTreeFilter(String[] sourceNames)
       {
-         return createEntry(location);
+         this.sourceNames = sourceNames;
+         this.acceptor = createAcceptor(sourceNames);
       }
 
-      /**<!====== addChild ======================================================>
-         This method allows us to "hook" the parent and children together.  Because
-         this isn't called until the whole sub-tree has been visited, this gives us
-         a chance to decide if we want this sub-tree before hooking it to it's parent.
-         </p>
-         If the child is an equipment we know we want to keep it because we'll only
-         have an equipment TreeEntry if this equipment has interesting trends.  Otherwise
-         we want to keep any area that has children (because that means it contains
-         one or more interesting equipment in it's descendant tree).  So, if one of
-         those two cases is true, add the child TreeEntry to the parent TreeEntry's
-         list of children.
-         </p>
-         <!      Name       Description>
-         @param  parent     the parent location's TreeEntry.
-         @param  child      the child location' TreeEntry.
-      <!=======================================================================>*/
-      public void addChild(TreeEntry parent, TreeEntry child)
+      private TreeEntry createEntry(Location location)
       {
-         if (child.hasTrendSources() || !child.getChildren().isEmpty())
-            parent.addChild(child);
+         TreeEntry entry = TreeEntryFactory.createEntry(location, acceptor);
+         if (entry.isAllowsChildren())
+         {
+            Boolean hasMatches = TrendSourceIndex.getInstance().hasMatchingDescendants(entry.getPath(), sourceNames);
+            if (hasMatches != null)
+               entry.setMatchingDescendants(hasMatches);
+         }
+         return entry;
       }
    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import com.controlj.green.addonsupport.access.trend.TrendAnalogSample;
+import com.controlj.green.addonsupport.access.trend.TrendProcessor;
+
+import java.util.Date;
+
+/**<!=========================================================================>
+   TrendProcessor that integrates the samples from an electrical kW trend source
+   to determine kWH demand for each day in the processed range.  The samples
+   are handed straight to an {@link IntegrationEngine}, which has the details
+   of how holes in the data are handled.
+<!==========================================================================>*/
+class TrendIntegrator implements TrendProcessor<TrendAnalogSample>
+{
+   private final IntegrationEngine engine;
+
+   /**<!====== TrendIntegrator ===============================================>
+      Creates an integrator for the days between the given times.
+      <!      Name       Description>
+      @param  boundaries Start of each day, followed by the end of the last day.
+   <!=======================================================================>*/
+   TrendIntegrator(long[] boundaries)
+   {
+      engine = new IntegrationEngine(boundaries);
+   }
+
+   public void processStart(Date startTime, TrendAnalogSample startBookend)
+   {
+      // For this application, ignore the time before the first sample.
+      // For some applications (like COV binary trends) you really need to know what the previous
+      // real sample value was before the requested range
+   }
+
+   public void processData(TrendAnalogSample sample)
+   {
+      engine.addSample(sample.getTimeInMillis(), sample.floatValue());
+   }
+
+   public void processEnd(Date endTime, TrendAnalogSample endBookend)
+   {
+      // ignore the time after the last sample
+   }
+
+   public void processHole(Date start, Date end)
+   {
+      engine.addHole(start.getTime(), end.getTime());
+   }
+
+   /**<!====== getValues =====================================================>
+      Returns the total consumption (in kWH) for each day.
+   <!=======================================================================>*/
+   public double[] getValues()
+   {
+      return engine.getTotals();
+   }
+}
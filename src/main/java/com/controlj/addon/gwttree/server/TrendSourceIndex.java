@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import com.controlj.addon.gwttree.client.TreeEntry;
+import com.controlj.green.addonsupport.access.*;
+import com.controlj.green.addonsupport.access.aspect.AnalogTrendSource;
+import com.controlj.green.addonsupport.access.util.Acceptors;
+
+import javax.servlet.ServletContext;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**<!=========================================================================>
+   In-memory index from each enabled analog trend source reference name to the
+   equipment that contain such a trend source (and the areas above them).  The
+   index is rebuilt periodically in the background by walking the geographic
+   tree once with the root system connection.  The rebuilds only begin when
+   the index is first asked for a tree, so a system that never filters the
+   static tree never pays for the walks.  When the index is fresh enough,
+   a filtered static tree can be built straight from it, which only touches the
+   few matching equipment instead of walking the whole system.
+   <p/>
+   Because the index is built without an operator, {@link #buildTree} checks
+   that the requesting operator can resolve each matching equipment before
+   adding it to the tree.
+   <p/>
+   Each indexed area also keeps a rollup of the trend source names found
+   below it, so {@link #hasMatchingDescendants} can tell the dynamic tree
+   which areas are not worth expanding without walking their sub-trees.
+<!==========================================================================>*/
+public class TrendSourceIndex
+{
+   public static final long DEFAULT_REFRESH_PERIOD = 15 * 60 * 1000L;
+   public static final long DEFAULT_MAX_AGE = 30 * 60 * 1000L;
+
+   private static final TrendSourceIndex instance = new TrendSourceIndex();
+
+   private volatile Snapshot snapshot;
+   private volatile long maxAge = DEFAULT_MAX_AGE;
+   private long refreshPeriod = DEFAULT_REFRESH_PERIOD;
+   private ScheduledExecutorService scheduler;
+   private volatile boolean scheduled;
+   private int generation;   // changed by stop, so a rebuild that was running then is not published
+   private volatile ServletContext context;
+
+   public static TrendSourceIndex getInstance() { return instance; }
+
+   /**<!====== start =========================================================>
+      Gets the index ready to be rebuilt in the background.  The first rebuild
+      starts when {@link #buildTree} is first called (or when one is
+      requested), and the index is then rebuilt every refreshPeriod.
+      <!      Name          Description>
+      @param  context       where to log failed rebuilds.
+      @param  refreshPeriod milliseconds between the end of one rebuild and the
+                            start of the next.
+      @param  maxAge        milliseconds after which an index is too stale to
+                            be used.
+   <!=======================================================================>*/
+   public synchronized void start(ServletContext context, long refreshPeriod, long maxAge)
+   {
+      stop();
+      this.context = context;
+      this.refreshPeriod = refreshPeriod;
+      this.maxAge = maxAge;
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, "GwtTree-TrendSourceIndex");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+         }
+      });
+   }
+
+   public synchronized void stop()
+   {
+      if (scheduler != null)
+      {
+         scheduler.shutdownNow();
+         scheduler = null;
+      }
+      scheduled = false;
+      ++generation;
+      snapshot = null;
+   }
+
+   // Starts the periodic rebuilds, unless they have started already or the index is not running
+   private synchronized void schedule()
+   {
+      if (scheduler == null || scheduled)
+         return;
+
+      scheduled = true;
+      scheduler.scheduleWithFixedDelay(rebuildTask, 0, refreshPeriod, TimeUnit.MILLISECONDS);
+   }
+
+   private final Runnable rebuildTask = new Runnable()
+   {
+      public void run()
+      {
+         try
+         {
+            rebuild();
+         }
+         catch (Exception e)
+         {
+            ServletContext logContext = context;
+            if (logContext != null)
+               logContext.log("Could not rebuild the trend source index", e);
+         }
+      }
+   };
+
+   /**<!====== rebuild =======================================================>
+      Walks the whole geographic tree and replaces the index.  Normally called
+      from the background thread started by {@link #start}.  The new index is
+      thrown away if the index is stopped while it is being built.
+   <!=======================================================================>*/
+   public void rebuild() throws Exception
+   {
+      int startGeneration;
+      synchronized (this)
+      {
+         startGeneration = generation;
+      }
+
+      // the index is as old as the start of the walk, however long the walk takes
+      final long started = System.currentTimeMillis();
+      SystemConnection connection = DirectAccess.getDirectAccess().getRootSystemConnection();
+      Snapshot built = connection.runReadAction(new ReadActionResult<Snapshot>()
+      {
+         public Snapshot execute(SystemAccess access) throws Exception
+         {
+            IndexingVisitor visitor = new IndexingVisitor();
+            Area root = access.visit(access.getGeoRoot(), visitor);
+            return new Snapshot(started, root, visitor.equipmentByTrend, visitor.areasByPath);
+         }
+      });
+
+      synchronized (this)
+      {
+         if (scheduler != null && generation == startGeneration)
+            snapshot = built;
+      }
+   }
+
+   /**<!====== requestRebuild ================================================>
+      Starts a rebuild on the background thread and returns straight away.
+      Returns false if the index is not running.
+   <!=======================================================================>*/
+   public synchronized boolean requestRebuild()
+   {
+      if (scheduler == null)
+         return false;
+      if (!scheduled)
+      {
+         schedule();   // the first of the periodic rebuilds starts straight away
+         return true;
+      }
+
+      scheduler.execute(rebuildTask);
+      return true;
+   }
+
+   /**<!====== isFresh =======================================================>
+      Returns true if the index has been built and is not older than the
+      configured maximum age.
+   <!=======================================================================>*/
+   public boolean isFresh()
+   {
+      Snapshot current = snapshot;
+      return current != null && System.currentTimeMillis() - current.built <= maxAge;
+   }
+
+   /**<!====== hasMatchingDescendants ========================================>
+      Returns whether any equipment below the given area has an enabled analog
+      trend source with one of the given names (or any name when sourceNames
+      is empty).
+      <!      Name          Description>
+      @param  areaPath      the transient lookup string of the area.
+      @param  sourceNames   the trend source reference names to filter on.
+      @return the answer as of the last rebuild, or null if it is not known
+              (the index is not fresh or the area was added since it was
+              built).  Equipment added since the rebuild is not counted, so
+              false is only a hint: callers must still let the area be
+              opened.
+   <!=======================================================================>*/
+   public Boolean hasMatchingDescendants(String areaPath, String[] sourceNames)
+   {
+      Snapshot current = snapshot;
+      if (current == null || System.currentTimeMillis() - current.built > maxAge)
+         return null;
+
+      Area area = current.areasByPath.get(areaPath);
+      if (area == null)
+         return null;
+      if (area.descendantTrendNames == null)
+         return Boolean.FALSE;
+      if (sourceNames.length == 0)
+         return Boolean.TRUE;
+
+      for (String sourceName : sourceNames)
+         if (area.descendantTrendNames.contains(sourceName))
+            return Boolean.TRUE;
+      return Boolean.FALSE;
+   }
+
+   /**<!====== buildTree =====================================================>
+      Builds the pruned static tree for the given trend source names from the
+      index.  This gives the same tree as the {@link TrendSparseTreeVisitor}
+      (as of the last rebuild), restricted to the equipment the operator using
+      the connection can resolve.
+      <!      Name          Description>
+      @param  connection    the operator's connection.
+      @param  sourceNames   the trend source reference names to filter on
+                            (must not be empty).
+      @return the root TreeEntry, or null if the index is not fresh (or not
+              built yet, in which case the first rebuild is started).
+   <!=======================================================================>*/
+   public TreeEntry buildTree(SystemConnection connection, String[] sourceNames) throws Exception
+   {
+      if (!scheduled)
+         schedule();
+
+      final Snapshot current = snapshot;
+      if (current == null || System.currentTimeMillis() - current.built > maxAge)
+         return null;
+
+      final Set<String> names = new HashSet<String>(Arrays.asList(sourceNames));
+      final SortedSet<IndexedEquipment> matches = new TreeSet<IndexedEquipment>();
+      for (String name : names)
+      {
+         List<IndexedEquipment> equipment = current.equipmentByTrend.get(name);
+         if (equipment != null)
+            matches.addAll(equipment);
+      }
+
+      return connection.runReadAction(new ReadActionResult<TreeEntry>()
+      {
+         public TreeEntry execute(SystemAccess access) throws Exception
+         {
+            Map<Area, TreeEntry> areaEntries = new IdentityHashMap<Area, TreeEntry>();
+            TreeEntry root = current.root.createEntry();
+            areaEntries.put(current.root, root);
+
+            for (IndexedEquipment eq : matches)
+            {
+               try
+               {
+                  access.getTree(SystemTree.Geographic).resolve(eq.path);
+               }
+               catch (UnresolvableException e)
+               {
+                  continue;   // removed since the index was built, or not visible to this operator
+               }
+               getAreaEntry(eq.parent, areaEntries).addChild(eq.createEntry(names));
+            }
+            return root;
+         }
+      });
+   }
+
+   private TreeEntry getAreaEntry(Area area, Map<Area, TreeEntry> areaEntries)
+   {
+      TreeEntry entry = areaEntries.get(area);
+      if (entry == null)
+      {
+         entry = area.createEntry();
+         areaEntries.put(area, entry);
+         getAreaEntry(area.parent, areaEntries).addChild(entry);
+      }
+      return entry;
+   }
+
+   private static class Snapshot
+   {
+      private final long built;
+      private final Area root;
+      private final Map<String, List<IndexedEquipment>> equipmentByTrend;
+      private final Map<String, Area> areasByPath;
+
+      private Snapshot(long built, Area root, Map<String, List<IndexedEquipment>> equipmentByTrend, Map<String, Area> areasByPath)
+      {
+         this.built = built;
+         this.root = root;
+         this.equipmentByTrend = equipmentByTrend;
+         this.areasByPath = areasByPath;
+      }
+   }
+
+   /**<!=========================================================================>
+      An indexed system or area location.  Each area keeps a link to its
+      parent so the ancestor path of an equipment can be recreated, and the
+      names of the trend sources found in the equipment below it (null when
+      there are none).
+   <!==========================================================================>*/
+   private static class Area
+   {
+      private final Area parent;
+      private final String path;
+      private final String name;
+      private Set<String> descendantTrendNames;
+
+      private Area(Area parent, Location location)
+      {
+         this.parent = parent;
+         this.path = location.getTransientLookupString();
+         this.name = location.getDisplayName();
+      }
+
+      private TreeEntry createEntry()
+      {
+         TreeEntry entry = new TreeEntry();
+         entry.setName(name);
+         entry.setPath(path);
+         return entry;
+      }
+   }
+
+   /**<!=========================================================================>
+      An indexed equipment with the reference names of its enabled analog
+      trend sources.  Equipment are ordered by when they were visited, which
+      keeps the trees built from the index in the same order as the
+      geographic tree.
+   <!==========================================================================>*/
+   private static class IndexedEquipment implements Comparable<IndexedEquipment>
+   {
+      private final int ordinal;
+      private final Area parent;
+      private final String path;
+      private final String name;
+      private final String[] trendNames;
+
+      private IndexedEquipment(int ordinal, Area parent, Location location, String[] trendNames)
+      {
+         this.ordinal = ordinal;
+         this.parent = parent;
+         this.path = location.getTransientLookupString();
+         this.name = location.getDisplayName();
+         this.trendNames = trendNames;
+      }
+
+      private TreeEntry createEntry(Set<String> sourceNames)
+      {
+         TreeEntry entry = new TreeEntry();
+         entry.setName(name);
+         entry.setPath(path);
+         entry.setAllowsChildren(false);
+         for (String trendName : trendNames)
+         {
+            if (sourceNames.contains(trendName))
+               entry.addTrendSource(TrendSourcePool.get(trendName));
+         }
+         return entry;
+      }
+
+      public int compareTo(IndexedEquipment o)
+      {
+         return ordinal < o.ordinal ? -1 : (ordinal == o.ordinal ? 0 : 1);
+      }
+   }
+
+   /**<!=========================================================================>
+      Walks the geographic tree recording every equipment with enabled analog
+      trend sources.
+   <!==========================================================================>*/
+   private static class IndexingVisitor extends TreeVisitor<Area>
+   {
+      private final Map<String, List<IndexedEquipment>> equipmentByTrend = new HashMap<String, List<IndexedEquipment>>();
+      private final Map<String, Area> areasByPath = new HashMap<String, Area>();
+      private int ordinal = 0;
+
+      @Override public Area visitEquipment(Area parent, Location eq)
+      {
+         Collection<AnalogTrendSource> sources = eq.find(AnalogTrendSource.class, Acceptors.enabledTrendSource());
+         if (!sources.isEmpty())
+         {
+            String[] trendNames = new String[sources.size()];
+            int idx = 0;
+            for (AnalogTrendSource source : sources)
+               trendNames[idx++] = TrendSourcePool.intern(source.getLocation().getReferenceName());
+
+            IndexedEquipment indexed = new IndexedEquipment(ordinal++, parent, eq, trendNames);
+            for (String trendName : trendNames)
+            {
+               List<IndexedEquipment> equipment = equipmentByTrend.get(trendName);
+               if (equipment == null)
+               {
+                  equipment = new ArrayList<IndexedEquipment>();
+                  equipmentByTrend.put(trendName, equipment);
+               }
+               equipment.add(indexed);
+            }
+
+            // roll the names up into every area above this equipment
+            for (Area area = parent; area != null; area = area.parent)
+            {
+               if (area.descendantTrendNames == null)
+                  area.descendantTrendNames = new HashSet<String>();
+               if (!area.descendantTrendNames.addAll(Arrays.asList(trendNames)))
+                  break;   // nothing new, so the areas further up already have these names
+            }
+         }
+         return null;   // nothing to walk below an equipment
+      }
+
+      @Override public Area visit(Area parent, Location location)
+      {
+         Area area = new Area(parent, location);
+         areasByPath.put(area.path, area);
+         return area;
+      }
+
+      @Override public void addChild(Area parent, Area child) { }
+   }
+}
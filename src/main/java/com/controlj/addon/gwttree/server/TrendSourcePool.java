@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2010 Automated Logic Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.controlj.addon.gwttree.server;
+
+import com.controlj.addon.gwttree.client.TreeEntry;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**<!=========================================================================>
+   Canonicalizing pool of {@link TreeEntry.TrendSource} objects.  A system has
+   only a handful of distinct trend source names repeated on thousands of
+   equipment, so all the entries built on the server share one TrendSource
+   (and one name String) per name.  The shared instances must never be
+   modified.
+<!==========================================================================>*/
+class TrendSourcePool
+{
+   private static final ConcurrentMap<String, TreeEntry.TrendSource> sources = new ConcurrentHashMap<String, TreeEntry.TrendSource>();
+
+   private TrendSourcePool() { }
+
+   /**<!====== get ===========================================================>
+      Returns the shared TrendSource with the given name.
+   <!=======================================================================>*/
+   public static TreeEntry.TrendSource get(String name)
+   {
+      TreeEntry.TrendSource source = sources.get(name);
+      if (source == null)
+      {
+         source = new TreeEntry.TrendSource();
+         source.setName(name);
+         TreeEntry.TrendSource existing = sources.putIfAbsent(name, source);
+         if (existing != null)
+            source = existing;
+      }
+      return source;
+   }
+
+   /**<!====== intern ========================================================>
+      Returns the canonical String for the given trend source name.
+   <!=======================================================================>*/
+   public static String intern(String name)
+   {
+      return get(name).getName();
+   }
+}